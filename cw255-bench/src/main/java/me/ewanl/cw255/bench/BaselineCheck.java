@@ -0,0 +1,204 @@
+package me.ewanl.cw255.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH JSON result file against a saved baseline, printing the change in
+ * throughput of every benchmark both files ran and failing if any dropped by more
+ * than the threshold.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc -rf json -rff baseline.json      (before a rewrite)
+ * java -jar target/benchmarks.jar -prof gc -rf json -rff current.json       (after)
+ * java -cp target/benchmarks.jar me.ewanl.cw255.bench.BaselineCheck baseline.json current.json [threshold %]
+ * </pre>
+ */
+public final class BaselineCheck {
+
+    /**
+     * Drop in throughput treated as a regression, if none is given
+     */
+    private static final double DEFAULT_THRESHOLD = 10;
+
+    private BaselineCheck() {
+    }
+
+    /**
+     * @param args Baseline file, current file, and optionally the threshold in percent
+     * @throws IOException If either file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baseline.json> <current.json> [threshold %]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+        Map<String, Double> baseline = scores(Path.of(args[0]));
+        Map<String, Double> current = scores(Path.of(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "  new     %s: %.3f%n", entry.getKey(), entry.getValue());
+                continue;
+            }
+            double change = (entry.getValue() - before) / before * 100;
+            boolean regressed = change < -threshold;
+            regressions += regressed ? 1 : 0;
+            System.out.printf(Locale.ROOT, "%s %+6.1f%% %s: %.3f -> %.3f%n", regressed ? "! SLOWER" : "        ",
+                    change, entry.getKey(), before, entry.getValue());
+        }
+
+        System.out.printf(Locale.ROOT, "%d of %d benchmarks regressed by more than %.1f%%%n",
+                regressions, current.size(), threshold);
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * Reads the primary score of every benchmark in a result file
+     *
+     * @param file JMH JSON result file
+     * @return Score by benchmark name and parameters, e.g. "ResizeBenchmark.resizeImage {scale=2.0, size=512}"
+     * @throws IOException If the file can't be read
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Double> scores(Path file) throws IOException {
+        Map<String, Double> scores = new TreeMap<>();
+        List<Object> runs = (List<Object>) new JsonReader(Files.readString(file)).value();
+        for (Object run : runs) {
+            Map<String, Object> result = (Map<String, Object>) run;
+            String name = (String) result.get("benchmark");
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            Object params = result.get("params");
+            if (params != null) {
+                name += " " + new TreeMap<>((Map<String, Object>) params);
+            }
+            Map<String, Object> primary = (Map<String, Object>) result.get("primaryMetric");
+            scores.put(name, ((Number) primary.get("score")).doubleValue());
+        }
+        return scores;
+    }
+
+    /**
+     * Just enough of a JSON reader for JMH's result files: objects become maps,
+     * arrays lists, and numbers doubles
+     */
+    private static final class JsonReader {
+
+        private final String text;
+        private int position;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return Next value in the text
+         */
+        Object value() {
+            skipWhitespace();
+            char c = text.charAt(position);
+            return switch (c) {
+                case '{' -> object();
+                case '[' -> array();
+                case '"' -> string();
+                default -> literal();
+            };
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (text.charAt(position) == '}') {
+                position++;
+                return map;
+            }
+            do {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                map.put(key, value());
+                skipWhitespace();
+            } while (text.charAt(position++) == ',');
+            return map;
+        }
+
+        private List<Object> array() {
+            List<Object> list = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (text.charAt(position) == ']') {
+                position++;
+                return list;
+            }
+            do {
+                list.add(value());
+                skipWhitespace();
+            } while (text.charAt(position++) == ',');
+            return list;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            for (char c = text.charAt(position++); c != '"'; c = text.charAt(position++)) {
+                if (c == '\\') {
+                    c = text.charAt(position++);
+                    switch (c) {
+                        case 'n' -> builder.append('\n');
+                        case 't' -> builder.append('\t');
+                        case 'u' -> {
+                            builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            position += 4;
+                        }
+                        default -> builder.append(c);
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+            return builder.toString();
+        }
+
+        /**
+         * @return Number, boolean, or null, with JMH's "NaN" written as a bare word
+         */
+        private Object literal() {
+            int start = position;
+            while (position < text.length() && ",]} \t\r\n".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String word = text.substring(start, position);
+            return switch (word) {
+                case "true" -> Boolean.TRUE;
+                case "false" -> Boolean.FALSE;
+                case "null" -> null;
+                default -> Double.parseDouble(word);
+            };
+        }
+
+        private void expect(char c) {
+            if (text.charAt(position++) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + (position - 1));
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package me.ewanl.cw255.bench;
+
+import me.ewanl.cw255.ConvolutionEngine;
+import me.ewanl.cw255.Kernel;
+import me.ewanl.cw255.Photoshop;
+import me.ewanl.cw255.Raster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Registered kernels through the strategy picked for them, and through the direct and FFT
+ * strategies for comparison, including the min/max normalisation
+ */
+@State(Scope.Benchmark)
+public class ConvolutionBenchmark extends KernelBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"laplacian", "box-blur", "gaussian-blur", "disc-blur"})
+    public String kernelName;
+
+    private Raster source;
+
+    private Kernel kernel;
+
+    @Setup
+    public void setUp() {
+        source = Rasters.synthetic(size, size);
+        kernel = Kernel.named(kernelName);
+    }
+
+    @Benchmark
+    public Raster chosen(PixelCounter pixels) {
+        pixels.add(size, size);
+        return Photoshop.applyKernel(source, kernel, null);
+    }
+
+    @Benchmark
+    public Raster direct(PixelCounter pixels) {
+        pixels.add(size, size);
+        return ConvolutionEngine.apply(source, kernel, ConvolutionEngine.Strategy.DIRECT, null);
+    }
+
+    @Benchmark
+    public Raster fft(PixelCounter pixels) {
+        pixels.add(size, size);
+        return ConvolutionEngine.apply(source, kernel, ConvolutionEngine.Strategy.FFT, null);
+    }
+}
@@ -0,0 +1,38 @@
+package me.ewanl.cw255.bench;
+
+import me.ewanl.cw255.GammaLut;
+import me.ewanl.cw255.Photoshop;
+import me.ewanl.cw255.Raster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Gamma correction through the lookup table
+ */
+@State(Scope.Benchmark)
+public class GammaBenchmark extends KernelBenchmark {
+
+    @Param({"512", "2048", "4096", "8192"})
+    public int size;
+
+    @Param({"0.5", "2.2"})
+    public double gamma;
+
+    private Raster source;
+    private GammaLut lut;
+
+    @Setup
+    public void setUp() {
+        source = Rasters.synthetic(size, size);
+        lut = GammaLut.forGamma(gamma);
+    }
+
+    @Benchmark
+    public Raster gammaCorrect(PixelCounter pixels) {
+        pixels.add(size, size);
+        return Photoshop.gammaCorrect(source, lut);
+    }
+}
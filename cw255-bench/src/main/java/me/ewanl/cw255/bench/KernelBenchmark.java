@@ -0,0 +1,24 @@
+package me.ewanl.cw255.bench;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings shared by every kernel benchmark. Throughput mode is needed for the
+ * PixelCounter to be reported as MP/s; the heap is sized for 8K images resized 2x.
+ * The SIMD kernels are enabled; compare with the scalar ones using -jvmArgsAppend -Dcw255.simd=false.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g", "-Djava.awt.headless=true",
+        "--add-modules", "jdk.incubator.vector"})
+public abstract class KernelBenchmark {
+}
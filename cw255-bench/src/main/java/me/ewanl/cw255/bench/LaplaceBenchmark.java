@@ -0,0 +1,32 @@
+package me.ewanl.cw255.bench;
+
+import me.ewanl.cw255.Photoshop;
+import me.ewanl.cw255.Raster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The 5x5 laplacian filter, including its min/max normalisation
+ */
+@State(Scope.Benchmark)
+public class LaplaceBenchmark extends KernelBenchmark {
+
+    @Param({"512", "2048", "4096", "8192"})
+    public int size;
+
+    private Raster source;
+
+    @Setup
+    public void setUp() {
+        source = Rasters.synthetic(size, size);
+    }
+
+    @Benchmark
+    public Raster applyLaplace(PixelCounter pixels) {
+        pixels.add(size, size);
+        return Photoshop.applyLaplace(source);
+    }
+}
@@ -0,0 +1,34 @@
+package me.ewanl.cw255.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts megapixels processed, which JMH divides by time and reports
+ * alongside ops/s as the "megapixels" secondary result, in MP/s
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class PixelCounter {
+
+    /**
+     * Megapixels processed this iteration
+     */
+    public double megapixels;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megapixels = 0;
+    }
+
+    /**
+     * @param width  Width of the image processed
+     * @param height Height of the image processed
+     */
+    void add(int width, int height) {
+        megapixels += (double) width * height / 1e6;
+    }
+}
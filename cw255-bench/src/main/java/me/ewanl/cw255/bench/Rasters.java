@@ -0,0 +1,37 @@
+package me.ewanl.cw255.bench;
+
+import me.ewanl.cw255.Raster;
+
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic source images for the benchmarks, generated without a display
+ */
+final class Rasters {
+
+    private Rasters() {
+    }
+
+    /**
+     * Creates an opaque raster of smooth gradients with noise on top, so the kernels
+     * see both flat areas and edges, as they would in a photo
+     *
+     * @param width  Width in pixels
+     * @param height Height in pixels
+     * @return New raster, the same for the same size
+     */
+    static Raster synthetic(int width, int height) {
+        SplittableRandom random = new SplittableRandom(width * 31L + height);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + noise) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return new Raster(width, height, pixels);
+    }
+}
@@ -0,0 +1,41 @@
+package me.ewanl.cw255.bench;
+
+import me.ewanl.cw255.Interpolation;
+import me.ewanl.cw255.Photoshop;
+import me.ewanl.cw255.Raster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Resizing up and down with each interpolation style. Megapixels are counted
+ * on the output, as that's what both styles loop over.
+ */
+@State(Scope.Benchmark)
+public class ResizeBenchmark extends KernelBenchmark {
+
+    @Param({"512", "2048", "4096", "8192"})
+    public int size;
+
+    @Param({"0.25", "0.75", "2.0"})
+    public double scale;
+
+    @Param({"NEAREST_NEIGHBOUR", "BILINEAR", "BICUBIC", "LANCZOS3"})
+    public Interpolation interpolation;
+
+    private Raster source;
+
+    @Setup
+    public void setUp() {
+        source = Rasters.synthetic(size, size);
+    }
+
+    @Benchmark
+    public Raster resizeImage(PixelCounter pixels) {
+        Raster result = Photoshop.resizeImage(source, scale, interpolation, null);
+        pixels.add(result.getWidth(), result.getHeight());
+        return result;
+    }
+}
@@ -0,0 +1,299 @@
+package me.ewanl.cw255;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bilinear resize using precomputed, fixed-point index and weight tables.
+ *
+ * Each axis has a table giving, for every destination index, the two source indices
+ * it falls between and an 8.8 fixed-point weight for the second. Tables only depend on
+ * the source and destination sizes, so they are cached and reused between frames.
+ * Pixels are unpacked into two longs holding two 32-bit channel lanes each, so all four
+ * channels are interpolated together in one multiply-add per weight.
+ */
+public final class BilinearResampler {
+
+    /**
+     * Number of axis tables kept in the cache
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Fixed-point weight representing 1.0
+     */
+    private static final int ONE = 256;
+
+    /**
+     * Mask of the two 8-bit channels in each half of an unpacked pixel
+     */
+    private static final long CHANNEL_MASK = 0x000000FF_000000FFL;
+
+    /**
+     * Half of the final 16.16 divisor in each lane, for rounding to nearest
+     */
+    private static final long ROUNDING = 0x00008000_00008000L;
+
+    /**
+     * Most recently used axis tables, keyed by (source size, destination size)
+     */
+    private static final Map<Long, AxisTable> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AxisTable> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private BilinearResampler() {
+    }
+
+    /**
+     * Source indices and weights for every destination index along one axis
+     */
+    static final class AxisTable {
+
+        /**
+         * First source index of each destination index
+         */
+        final int[] lower;
+
+        /**
+         * Second source index of each destination index, clamped to the edge
+         */
+        final int[] upper;
+
+        /**
+         * Weight of the second source index, out of ONE
+         */
+        final int[] weight;
+
+        /**
+         * Builds the table using the same mapping the floating-point resize used
+         *
+         * @param srcSize Number of source pixels along the axis
+         * @param dstSize Number of destination pixels along the axis
+         */
+        AxisTable(int srcSize, int dstSize) {
+            lower = new int[dstSize];
+            upper = new int[dstSize];
+            weight = new int[dstSize];
+
+            double factor = (double) srcSize / (double) dstSize;
+            int max = srcSize - 1;
+            for (int i = 0; i < dstSize; i++) {
+                double o = (double) i * factor;
+                int o1 = Math.min((int) o, max);
+                lower[i] = o1;
+                upper[i] = (o1 == max) ? o1 : o1 + 1; // Adjust for boundary condition
+                weight[i] = (int) Math.round((o - o1) * ONE);
+            }
+        }
+    }
+
+    /**
+     * Gets the table for an axis, reusing a cached one where possible
+     *
+     * @param srcSize Number of source pixels along the axis
+     * @param dstSize Number of destination pixels along the axis
+     * @return Axis table
+     */
+    static AxisTable table(int srcSize, int dstSize) {
+        long key = ((long) srcSize << 32) | dstSize;
+        synchronized (cache) {
+            return cache.computeIfAbsent(key, k -> new AxisTable(srcSize, dstSize));
+        }
+    }
+
+    /**
+     * Bilinearly resizes a raster
+     *
+     * @param source    Raster to resize
+     * @param newWidth  Width of the resized raster
+     * @param newHeight Height of the resized raster
+     * @param lut       Lookup-table applied to the output, or null for none
+     * @return Resized raster
+     */
+    public static Raster resize(Raster source, int newWidth, int newHeight, GammaLut lut) {
+        return resize(source, newWidth, newHeight, lut, 0, 0, newWidth, newHeight);
+    }
+
+    /**
+     * Bilinearly resizes a raster, but only works out one rectangle of the result
+     *
+     * @param source       Raster to resize
+     * @param newWidth     Width of the whole resized raster
+     * @param newHeight    Height of the whole resized raster
+     * @param lut          Lookup-table applied to the output, or null for none
+     * @param x            Left of the rectangle
+     * @param y            Top of the rectangle
+     * @param regionWidth  Width of the rectangle
+     * @param regionHeight Height of the rectangle
+     * @return Resized rectangle
+     */
+    public static Raster resize(Raster source, int newWidth, int newHeight, GammaLut lut,
+                                int x, int y, int regionWidth, int regionHeight) {
+        Raster resized = RasterPool.getDefault().acquireRaster(regionWidth, regionHeight);
+        if (regionWidth == 0 || regionHeight == 0) {
+            return resized;
+        }
+
+        AxisTable columns = table(source.width, newWidth);
+        AxisTable rows = table(source.height, newHeight);
+
+        TileScheduler.getDefault().forEachBand(regionWidth, regionHeight, (startRow, endRow) ->
+                resizeBand(source, resized, columns, rows, lut, x, y, startRow, endRow));
+        return resized;
+    }
+
+    /**
+     * Resizes one band of destination rows
+     *
+     * @param source   Raster being resized
+     * @param resized  Raster being written
+     * @param columns  Table for the x axis
+     * @param rows     Table for the y axis
+     * @param lut      Lookup-table applied to the output, or null for none
+     * @param x        Column of the whole resized raster that the region starts at
+     * @param y        Row of the whole resized raster that the region starts at
+     * @param startRow First row of the band, within the region
+     * @param endRow   Row after the last row of the band, within the region
+     */
+    private static void resizeBand(Raster source, Raster resized, AxisTable columns, AxisTable rows,
+                                   GammaLut lut, int x, int y, int startRow, int endRow) {
+        int newWidth = resized.width;
+        int[] dst = resized.pixels;
+
+        // Horizontally interpolated source rows, kept while consecutive output rows share them
+        long[][] redBlue = new long[2][newWidth];
+        long[][] alphaGreen = new long[2][newWidth];
+        int[] cachedRow = {-1, -1};
+
+        for (int row = startRow; row < endRow; row++) {
+
+            // Finds (or interpolates) the two source rows this output row falls between
+            int top = horizontalRow(source, columns, x, rows.lower[y + row], redBlue, alphaGreen, cachedRow);
+            int bottom = horizontalRow(source, columns, x, rows.upper[y + row], redBlue, alphaGreen, cachedRow);
+
+            blendRows(redBlue[top], alphaGreen[top], redBlue[bottom], alphaGreen[bottom],
+                    rows.weight[y + row], dst, row * newWidth, lut);
+        }
+    }
+
+    /**
+     * Blends two horizontally interpolated rows into a row of packed pixels
+     *
+     * @param topRB     Red/blue lanes of the upper row
+     * @param topAG     Alpha/green lanes of the upper row
+     * @param bottomRB  Red/blue lanes of the lower row
+     * @param bottomAG  Alpha/green lanes of the lower row
+     * @param wy        Weight of the lower row, out of ONE
+     * @param dst       Pixels written to, topRB.length of them
+     * @param outOffset Index of the first pixel written
+     * @param lut       Lookup-table applied to the output, or null for none
+     */
+    static void blendRows(long[] topRB, long[] topAG, long[] bottomRB, long[] bottomAG, int wy,
+                          int[] dst, int outOffset, GammaLut lut) {
+        if (Simd.ENABLED && topRB.length >= Simd.MIN_LENGTH) {
+            VectorKernels.blendRows(topRB, topAG, bottomRB, bottomAG, wy, dst, outOffset);
+            if (lut != null) {
+                lut.apply(dst, outOffset, dst, outOffset, topRB.length);
+            }
+            return;
+        }
+        blendRowsScalar(topRB, topAG, bottomRB, bottomAG, wy, dst, outOffset, lut);
+    }
+
+    /**
+     * Blends two horizontally interpolated rows a pixel at a time, for when the SIMD kernels are off or the row is short
+     *
+     * @param topRB     Red/blue lanes of the upper row
+     * @param topAG     Alpha/green lanes of the upper row
+     * @param bottomRB  Red/blue lanes of the lower row
+     * @param bottomAG  Alpha/green lanes of the lower row
+     * @param wy        Weight of the lower row, out of ONE
+     * @param dst       Pixels written to, topRB.length of them
+     * @param outOffset Index of the first pixel written
+     * @param lut       Lookup-table applied to the output, or null for none
+     */
+    static void blendRowsScalar(long[] topRB, long[] topAG, long[] bottomRB, long[] bottomAG, int wy,
+                                int[] dst, int outOffset, GammaLut lut) {
+        int wy2 = ONE - wy;
+
+        // Blends the two rows, rounding the 16.16 lanes back down to 8 bits
+        for (int x = 0; x < topRB.length; x++) {
+            long rb = (topRB[x] * wy2 + bottomRB[x] * wy + ROUNDING) >>> 16 & CHANNEL_MASK;
+            long ag = (topAG[x] * wy2 + bottomAG[x] * wy + ROUNDING) >>> 16 & CHANNEL_MASK;
+            int pixel = (int) (rb | (rb >>> 16)) & 0x00FF00FF
+                    | ((int) (ag | (ag >>> 16)) & 0x00FF00FF) << 8;
+            dst[outOffset + x] = lut == null ? pixel : lut.apply(pixel);
+        }
+    }
+
+    /**
+     * Makes sure a source row is horizontally interpolated in one of the two row buffers
+     *
+     * @param source     Raster being resized
+     * @param columns    Table for the x axis
+     * @param x          First column of the table used
+     * @param srcRow     Source row needed
+     * @param redBlue    Red/blue lanes of the two buffered rows
+     * @param alphaGreen Alpha/green lanes of the two buffered rows
+     * @param cachedRow  Source row held by each buffer
+     * @return Index of the buffer holding the row
+     */
+    private static int horizontalRow(Raster source, AxisTable columns, int x, int srcRow,
+                                     long[][] redBlue, long[][] alphaGreen, int[] cachedRow) {
+        if (cachedRow[0] == srcRow) {
+            return 0;
+        }
+        if (cachedRow[1] == srcRow) {
+            return 1;
+        }
+
+        // Rows only move downwards, so the buffer holding the higher-up row is replaced
+        int slot = cachedRow[0] < cachedRow[1] ? 0 : 1;
+        cachedRow[slot] = srcRow;
+
+        interpolateRow(source.pixels, srcRow * source.width, columns, x, redBlue[slot], alphaGreen[slot]);
+        return slot;
+    }
+
+    /**
+     * Horizontally interpolates a row of packed pixels into 8.8 fixed-point lanes
+     *
+     * @param src       Source pixels
+     * @param rowOffset Index of the row's first pixel
+     * @param columns   Table for the x axis
+     * @param first     First column of the table used
+     * @param rbRow     Red/blue lanes out
+     * @param agRow     Alpha/green lanes out
+     */
+    static void interpolateRow(int[] src, int rowOffset, AxisTable columns, int first, long[] rbRow, long[] agRow) {
+        int[] lower = columns.lower, upper = columns.upper, weight = columns.weight;
+
+        for (int x = 0; x < rbRow.length; x++) {
+            int pixel1 = src[rowOffset + lower[first + x]];
+            int pixel2 = src[rowOffset + upper[first + x]];
+            int wx = weight[first + x];
+            int wx2 = ONE - wx;
+            rbRow[x] = spreadRedBlue(pixel1) * wx2 + spreadRedBlue(pixel2) * wx;
+            agRow[x] = spreadAlphaGreen(pixel1) * wx2 + spreadAlphaGreen(pixel2) * wx;
+        }
+    }
+
+    /**
+     * @param argb Packed pixel
+     * @return Red in the upper 32-bit lane, blue in the lower
+     */
+    private static long spreadRedBlue(int argb) {
+        return ((long) (argb & 0x00FF0000) << 16) | (argb & 0xFF);
+    }
+
+    /**
+     * @param argb Packed pixel
+     * @return Alpha in the upper 32-bit lane, green in the lower
+     */
+    private static long spreadAlphaGreen(int argb) {
+        return ((long) (argb >>> 24) << 32) | ((argb >>> 8) & 0xFF);
+    }
+}
@@ -0,0 +1,78 @@
+package me.ewanl.cw255;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Flag a render checks between bands of rows, so a newer render can stop a stale one.
+ *
+ * The token is bound to the thread that starts the render; the tile scheduler picks it
+ * up from there and checks it before every band, whichever thread the band runs on.
+ */
+public final class CancellationToken {
+
+    /**
+     * Token that is never cancelled, used when none is bound
+     */
+    public static final CancellationToken NONE = new CancellationToken();
+
+    /**
+     * Token bound to each thread
+     */
+    private static final ThreadLocal<CancellationToken> current = ThreadLocal.withInitial(() -> NONE);
+
+    /**
+     * Whether the render should stop
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * @return Token bound to the calling thread, or NONE
+     */
+    public static CancellationToken current() {
+        return current.get();
+    }
+
+    /**
+     * Runs a render with this token bound to the calling thread
+     *
+     * @param render Render to run
+     * @param <T>    Type of result
+     * @return Result of the render
+     * @throws CancellationException If the token was cancelled during the render
+     */
+    public <T> T call(Supplier<T> render) {
+        CancellationToken previous = current.get();
+        current.set(this);
+        try {
+            return render.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * Asks the render to stop at its next check
+     */
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @return Whether the render has been asked to stop
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException If the render has been asked to stop
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Render cancelled");
+        }
+    }
+}
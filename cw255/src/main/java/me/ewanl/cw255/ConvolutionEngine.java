@@ -0,0 +1,502 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+
+/**
+ * Applies integer kernels to packed rasters without any per-pixel allocation.
+ *
+ * Each band of output rows keeps a rolling window of the source rows the kernel covers,
+ * unpacked once into red, green, and blue int rows. Every non-zero weight is then
+ * multiplied along a whole window row into int accumulators, which become the raw
+ * responses in three int planes. A second pass stretches the responses of each channel
+ * so its min/max become 0/255, as the cross correlation filter always has.
+ *
+ * That is the DIRECT strategy. Rank 1 kernels instead run their row of weights along
+ * each source row and their column of weights down the results (SEPARABLE), and large
+ * kernels go through FftConvolution (FFT). Every strategy gives the same raw responses,
+ * runs on the tile scheduler, and shares the normalisation.
+ */
+public final class ConvolutionEngine {
+
+    /**
+     * Non-zero weights above which a kernel is correlated through Fourier transforms.
+     * The direct path speeds up with the SIMD width, so the more int lanes, the larger a
+     * kernel must be before the transforms win (with 16 lanes, none up to 31x31 does).
+     */
+    static final int FFT_MIN_TAPS = Simd.ENABLED ? 64 * VectorKernels.intLanes() : 128;
+
+    private ConvolutionEngine() {
+    }
+
+    /**
+     * Way of working out a kernel's responses
+     */
+    public enum Strategy {
+
+        /**
+         * Multiplies every non-zero weight along the source rows
+         */
+        DIRECT,
+
+        /**
+         * Runs the kernel's row of weights, then its column, as two 1-D passes
+         */
+        SEPARABLE,
+
+        /**
+         * Multiplies Fourier transforms of overlapping source blocks with the kernel's
+         */
+        FFT
+    }
+
+    /**
+     * Picks the quickest strategy for a kernel
+     *
+     * @param kernel Kernel to correlate with
+     * @return SEPARABLE if the kernel is rank 1 and its two passes have fewer weights than it,
+     * otherwise FFT if it has more than FFT_MIN_TAPS non-zero weights, otherwise DIRECT
+     */
+    public static Strategy strategyFor(Kernel kernel) {
+        int taps = kernel.getTaps();
+        if (kernel.isSeparable() && kernel.width + kernel.height < taps) {
+            return Strategy.SEPARABLE;
+        }
+        return taps > FFT_MIN_TAPS ? Strategy.FFT : Strategy.DIRECT;
+    }
+
+    /**
+     * Raw, un-normalised responses of a kernel, one plane per channel
+     */
+    static final class Responses {
+
+        final int width;
+        final int height;
+        final int[] red;
+        final int[] green;
+        final int[] blue;
+
+        /**
+         * Min/max of each channel, as [minR, maxR, minG, maxG, minB, maxB]
+         */
+        int[] range;
+
+        Responses(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.red = RasterPool.getDefault().acquire(width * height);
+            this.green = RasterPool.getDefault().acquire(width * height);
+            this.blue = RasterPool.getDefault().acquire(width * height);
+        }
+
+        /**
+         * Gives the planes back to the pool, once they've been normalised
+         */
+        void release() {
+            RasterPool.getDefault().release(red);
+            RasterPool.getDefault().release(green);
+            RasterPool.getDefault().release(blue);
+        }
+    }
+
+    /**
+     * Filters a raster, keeping only the pixels the whole kernel fits over
+     *
+     * @param source Raster to filter
+     * @param kernel Kernel to correlate with
+     * @param lut    Lookup-table applied to the output, or null for none
+     * @return Filtered raster, (kernel width - 1) narrower and (kernel height - 1) shorter
+     */
+    public static Raster apply(Raster source, Kernel kernel, GammaLut lut) {
+        return apply(source, kernel, strategyFor(kernel), lut);
+    }
+
+    /**
+     * Filters a raster with a given strategy, keeping only the pixels the whole kernel fits over
+     *
+     * @param source   Raster to filter
+     * @param kernel   Kernel to correlate with
+     * @param strategy Way of working out the responses; SEPARABLE needs a rank 1 kernel
+     * @param lut      Lookup-table applied to the output, or null for none
+     * @return Filtered raster, (kernel width - 1) narrower and (kernel height - 1) shorter
+     */
+    public static Raster apply(Raster source, Kernel kernel, Strategy strategy, GammaLut lut) {
+        Responses responses = responses(source, kernel, strategy);
+        try {
+            return normalise(responses, lut);
+        } finally {
+            responses.release();
+        }
+    }
+
+    /**
+     * Works out the raw responses of a kernel over a raster, and their range
+     *
+     * @param source   Raster to filter
+     * @param kernel   Kernel to correlate with
+     * @param strategy Way of working out the responses
+     * @return Raw responses
+     */
+    static Responses responses(Raster source, Kernel kernel, Strategy strategy) {
+        int outWidth = source.width - kernel.width + 1;
+        int outHeight = source.height - kernel.height + 1;
+        if (outWidth <= 0 || outHeight <= 0) {
+            throw new IllegalArgumentException("Image is smaller than the " + kernel.width + "x" + kernel.height + " kernel");
+        }
+        if (strategy == Strategy.SEPARABLE && !kernel.isSeparable()) {
+            throw new IllegalArgumentException(kernel + " can't be split into a row and a column");
+        }
+
+        Responses responses = new Responses(outWidth, outHeight);
+        TileScheduler scheduler = TileScheduler.getDefault();
+        responses.range = switch (strategy) {
+            case DIRECT -> scheduler.reduceBands(outWidth, outHeight,
+                    (startRow, endRow) -> responsesBand(source, kernel, responses, startRow, endRow),
+                    ConvolutionEngine::mergeRanges);
+            case SEPARABLE -> scheduler.reduceBands(outWidth, outHeight,
+                    (startRow, endRow) -> separableBand(source, kernel, responses, startRow, endRow),
+                    ConvolutionEngine::mergeRanges);
+            case FFT -> {
+
+                // Bands are one block of transform results high, so no transform is wasted on a band's edge
+                FftConvolution.Spectrum spectrum = FftConvolution.spectrum(kernel);
+                yield scheduler.reduceFixedBands(spectrum.block, outHeight,
+                        (startRow, endRow) -> FftConvolution.responsesBand(source, kernel, spectrum, responses,
+                                startRow, endRow),
+                        ConvolutionEngine::mergeRanges);
+            }
+        };
+        return responses;
+    }
+
+    /**
+     * Works out the raw responses of one band of output rows
+     *
+     * @param source    Raster being filtered
+     * @param kernel    Kernel to correlate with
+     * @param responses Planes the responses are written to
+     * @param startRow  First output row of the band
+     * @param endRow    Row after the last output row of the band
+     * @return Min/max of the band's responses
+     */
+    private static int[] responsesBand(Raster source, Kernel kernel, Responses responses, int startRow, int endRow) {
+        int width = source.width;
+        int outWidth = responses.width;
+        int kernelHeight = kernel.height;
+
+        // Rolling window of unpacked source rows, row y of the source kept in slot y % kernelHeight
+        int[][] windowRed = new int[kernelHeight][width];
+        int[][] windowGreen = new int[kernelHeight][width];
+        int[][] windowBlue = new int[kernelHeight][width];
+        for (int y = startRow; y < startRow + kernelHeight - 1; y++) {
+            unpackRow(source.pixels, y * width, windowRed[y % kernelHeight], windowGreen[y % kernelHeight], windowBlue[y % kernelHeight]);
+        }
+
+        int[] range = emptyRange();
+
+        for (int y = startRow; y < endRow; y++) {
+
+            // Slides the window down onto the next source row
+            int newRow = y + kernelHeight - 1;
+            int slot = newRow % kernelHeight;
+            unpackRow(source.pixels, newRow * width, windowRed[slot], windowGreen[slot], windowBlue[slot]);
+
+            // Accumulates straight into this row of the response planes
+            int outOffset = y * outWidth;
+            correlateRow(kernel, windowRed, windowGreen, windowBlue, y,
+                    responses.red, responses.green, responses.blue, outOffset, outWidth);
+            widenRange(range, responses.red, responses.green, responses.blue, outOffset, outOffset + outWidth);
+        }
+        return range;
+    }
+
+    /**
+     * Works out the raw responses of one band of output rows in two passes: the kernel's row
+     * of weights along each source row into a rolling window, then its column down the window
+     *
+     * @param source    Raster being filtered
+     * @param kernel    Rank 1 kernel to correlate with
+     * @param responses Planes the responses are written to
+     * @param startRow  First output row of the band
+     * @param endRow    Row after the last output row of the band
+     * @return Min/max of the band's responses
+     */
+    private static int[] separableBand(Raster source, Kernel kernel, Responses responses, int startRow, int endRow) {
+        int width = source.width;
+        int outWidth = responses.width;
+        int kernelHeight = kernel.height;
+        Kernel rowFactor = kernel.rowFactor;
+        Kernel columnFactor = kernel.columnFactor;
+
+        // One unpacked source row, as a window of height 1 for the row pass
+        int[][] sourceRed = new int[1][width];
+        int[][] sourceGreen = new int[1][width];
+        int[][] sourceBlue = new int[1][width];
+
+        // Rolling window of row-filtered rows, row y of the source kept in slot y % kernelHeight
+        int[][] windowRed = new int[kernelHeight][outWidth];
+        int[][] windowGreen = new int[kernelHeight][outWidth];
+        int[][] windowBlue = new int[kernelHeight][outWidth];
+        for (int y = startRow; y < startRow + kernelHeight - 1; y++) {
+            filterRow(source, rowFactor, y, sourceRed, sourceGreen, sourceBlue, windowRed, windowGreen, windowBlue);
+        }
+
+        int[] range = emptyRange();
+
+        for (int y = startRow; y < endRow; y++) {
+
+            // Slides the window down onto the next source row
+            filterRow(source, rowFactor, y + kernelHeight - 1, sourceRed, sourceGreen, sourceBlue,
+                    windowRed, windowGreen, windowBlue);
+
+            // Runs the column of weights down the window, straight into this row of the response planes
+            int outOffset = y * outWidth;
+            correlateRow(columnFactor, windowRed, windowGreen, windowBlue, y,
+                    responses.red, responses.green, responses.blue, outOffset, outWidth);
+            widenRange(range, responses.red, responses.green, responses.blue, outOffset, outOffset + outWidth);
+        }
+        return range;
+    }
+
+    /**
+     * Unpacks a source row and runs a row of weights along it, into its slot of a window
+     *
+     * @param source      Raster being filtered
+     * @param rowFactor   Row of weights
+     * @param row         Source row
+     * @param sourceRed   Red row the source row is unpacked into
+     * @param sourceGreen Green row the source row is unpacked into
+     * @param sourceBlue  Blue row the source row is unpacked into
+     * @param windowRed   Red rows of the window
+     * @param windowGreen Green rows of the window
+     * @param windowBlue  Blue rows of the window
+     */
+    private static void filterRow(Raster source, Kernel rowFactor, int row,
+                                  int[][] sourceRed, int[][] sourceGreen, int[][] sourceBlue,
+                                  int[][] windowRed, int[][] windowGreen, int[][] windowBlue) {
+        int slot = row % windowRed.length;
+        unpackRow(source.pixels, row * source.width, sourceRed[0], sourceGreen[0], sourceBlue[0]);
+        correlateRow(rowFactor, sourceRed, sourceGreen, sourceBlue, 0,
+                windowRed[slot], windowGreen[slot], windowBlue[slot], 0, windowRed[slot].length);
+    }
+
+    /**
+     * Correlates a kernel with a window of unpacked rows, giving one row of raw responses
+     *
+     * @param kernel      Kernel to correlate with
+     * @param windowRed   Red rows of the window
+     * @param windowGreen Green rows of the window
+     * @param windowBlue  Blue rows of the window
+     * @param topRow      Source row under the kernel's top row, held in slot topRow % kernel height
+     * @param red         Red responses out
+     * @param green       Green responses out
+     * @param blue        Blue responses out
+     * @param outOffset   Index of the first response written
+     * @param outWidth    Number of responses written
+     */
+    static void correlateRow(Kernel kernel, int[][] windowRed, int[][] windowGreen, int[][] windowBlue, int topRow,
+                             int[] red, int[] green, int[] blue, int outOffset, int outWidth) {
+        if (Simd.ENABLED && outWidth >= Simd.MIN_LENGTH) {
+            VectorKernels.correlateRow(kernel, windowRed, windowGreen, windowBlue, topRow,
+                    red, green, blue, outOffset, outWidth);
+            return;
+        }
+        correlateRowScalar(kernel, windowRed, windowGreen, windowBlue, topRow, red, green, blue, outOffset, outWidth);
+    }
+
+    /**
+     * Correlates a kernel with a window of unpacked rows one weight at a time, for when the SIMD kernels
+     * are off or the row is short
+     *
+     * @param kernel      Kernel to correlate with
+     * @param windowRed   Red rows of the window
+     * @param windowGreen Green rows of the window
+     * @param windowBlue  Blue rows of the window
+     * @param topRow      Source row under the kernel's top row, held in slot topRow % kernel height
+     * @param red         Red responses out
+     * @param green       Green responses out
+     * @param blue        Blue responses out
+     * @param outOffset   Index of the first response written
+     * @param outWidth    Number of responses written
+     */
+    static void correlateRowScalar(Kernel kernel, int[][] windowRed, int[][] windowGreen, int[][] windowBlue, int topRow,
+                                   int[] red, int[] green, int[] blue, int outOffset, int outWidth) {
+        int kernelWidth = kernel.width;
+        int kernelHeight = kernel.height;
+        int[] weights = kernel.weights;
+
+        Arrays.fill(red, outOffset, outOffset + outWidth, 0);
+        Arrays.fill(green, outOffset, outOffset + outWidth, 0);
+        Arrays.fill(blue, outOffset, outOffset + outWidth, 0);
+
+        for (int ky = 0; ky < kernelHeight; ky++) {
+            int windowSlot = (topRow + ky) % kernelHeight;
+            int[] rowRed = windowRed[windowSlot], rowGreen = windowGreen[windowSlot], rowBlue = windowBlue[windowSlot];
+
+            for (int kx = 0; kx < kernelWidth; kx++) {
+                int weight = weights[ky * kernelWidth + kx];
+                if (weight == 0) {
+                    continue;
+                }
+                for (int x = 0; x < outWidth; x++) {
+                    red[outOffset + x] += weight * rowRed[x + kx];
+                    green[outOffset + x] += weight * rowGreen[x + kx];
+                    blue[outOffset + x] += weight * rowBlue[x + kx];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Min/max that any response will widen, as [minR, maxR, minG, maxG, minB, maxB]
+     */
+    static int[] emptyRange() {
+        return new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, Integer.MIN_VALUE};
+    }
+
+    /**
+     * Adjusts the min/max values as/if needed to take in a run of responses
+     *
+     * @param range Min/max to widen
+     * @param red   Red responses
+     * @param green Green responses
+     * @param blue  Blue responses
+     * @param from  Index of the first response
+     * @param to    Index after the last response
+     */
+    static void widenRange(int[] range, int[] red, int[] green, int[] blue, int from, int to) {
+        if (Simd.ENABLED && to - from >= Simd.MIN_LENGTH) {
+            VectorKernels.widenRange(range, red, green, blue, from, to);
+            return;
+        }
+        widenRangeScalar(range, red, green, blue, from, to);
+    }
+
+    /**
+     * Widens the min/max a response at a time, for when the SIMD kernels are off or the run is short
+     *
+     * @param range Min/max to widen
+     * @param red   Red responses
+     * @param green Green responses
+     * @param blue  Blue responses
+     * @param from  Index of the first response
+     * @param to    Index after the last response
+     */
+    static void widenRangeScalar(int[] range, int[] red, int[] green, int[] blue, int from, int to) {
+        for (int x = from; x < to; x++) {
+            range[0] = Math.min(range[0], red[x]);
+            range[1] = Math.max(range[1], red[x]);
+            range[2] = Math.min(range[2], green[x]);
+            range[3] = Math.max(range[3], green[x]);
+            range[4] = Math.min(range[4], blue[x]);
+            range[5] = Math.max(range[5], blue[x]);
+        }
+    }
+
+    /**
+     * Unpacks a row of packed pixels into separate red, green, and blue rows
+     *
+     * @param src    Source pixels
+     * @param offset Index of the row's first pixel
+     * @param red    Red values out
+     * @param green  Green values out
+     * @param blue   Blue values out
+     */
+    static void unpackRow(int[] src, int offset, int[] red, int[] green, int[] blue) {
+        if (Simd.ENABLED && red.length >= Simd.MIN_LENGTH) {
+            VectorKernels.unpackRow(src, offset, red, green, blue);
+            return;
+        }
+        unpackRowScalar(src, offset, red, green, blue);
+    }
+
+    /**
+     * Unpacks a row of packed pixels a pixel at a time, for when the SIMD kernels are off or the row is short
+     *
+     * @param src    Source pixels
+     * @param offset Index of the row's first pixel
+     * @param red    Red values out
+     * @param green  Green values out
+     * @param blue   Blue values out
+     */
+    static void unpackRowScalar(int[] src, int offset, int[] red, int[] green, int[] blue) {
+        for (int x = 0; x < red.length; x++) {
+            int argb = src[offset + x];
+            red[x] = (argb >>> 16) & 0xFF;
+            green[x] = (argb >>> 8) & 0xFF;
+            blue[x] = argb & 0xFF;
+        }
+    }
+
+    /**
+     * Merges the min/max of two bands
+     *
+     * @param a Min/max of one band
+     * @param b Min/max of another band
+     * @return Min/max of both
+     */
+    static int[] mergeRanges(int[] a, int[] b) {
+        return new int[]{
+                Math.min(a[0], b[0]), Math.max(a[1], b[1]),
+                Math.min(a[2], b[2]), Math.max(a[3], b[3]),
+                Math.min(a[4], b[4]), Math.max(a[5], b[5])};
+    }
+
+    /**
+     * Stretches the responses of each channel so its min/max become 0/255
+     *
+     * @param responses Raw responses and their range
+     * @param lut       Lookup-table applied to the output, or null for none
+     * @return Filtered raster
+     */
+    static Raster normalise(Responses responses, GammaLut lut) {
+        int width = responses.width;
+        Raster filtered = RasterPool.getDefault().acquireRaster(width, responses.height);
+        int[] dst = filtered.pixels;
+        int[] range = responses.range;
+
+        TileScheduler.getDefault().forEachBand(width, responses.height, (startRow, endRow) -> {
+            normaliseRow(responses.red, responses.green, responses.blue, startRow * width,
+                    range, lut, dst, startRow * width, (endRow - startRow) * width);
+        });
+        return filtered;
+    }
+
+    /**
+     * Stretches a run of responses into packed pixels
+     *
+     * @param red       Red responses
+     * @param green     Green responses
+     * @param blue      Blue responses
+     * @param offset    Index of the first response
+     * @param range     Min/max of each channel
+     * @param lut       Lookup-table applied to the output, or null for none
+     * @param dst       Pixels written to
+     * @param dstOffset Index of the first pixel written
+     * @param length    Number of pixels
+     */
+    static void normaliseRow(int[] red, int[] green, int[] blue, int offset, int[] range, GammaLut lut,
+                             int[] dst, int dstOffset, int length) {
+        for (int p = 0; p < length; p++) {
+
+            // Calculates the normals of the reds, greens, and blues
+            int redVal = stretch(red[offset + p], range[0], range[1]);
+            int greenVal = stretch(green[offset + p], range[2], range[3]);
+            int blueVal = stretch(blue[offset + p], range[4], range[5]);
+
+            // Writes the new values
+            int pixel = 0xFF000000 | (redVal << 16) | (greenVal << 8) | blueVal;
+            dst[dstOffset + p] = lut == null ? pixel : lut.apply(pixel);
+        }
+    }
+
+    /**
+     * @param value Raw response
+     * @param min   Smallest response of the channel
+     * @param max   Largest response of the channel
+     * @return Response scaled into 0-255, or 0 if every response was the same
+     */
+    private static int stretch(int value, int min, int max) {
+        return max == min ? 0 : (int) ((long) (value - min) * 255 / (max - min));
+    }
+}
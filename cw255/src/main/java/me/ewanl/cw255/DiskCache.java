@@ -0,0 +1,365 @@
+package me.ewanl.cw255;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Size-bounded store of rasters on disk, so expensive results survive between runs.
+ *
+ * Keys are text naming what produced the raster, e.g. a content hash of the source plus
+ * each stage's parameters, and each is stored in a file named after the SHA-256 of its
+ * key. Files hold each pixel's difference from the one to its left, deflated, which
+ * shrinks photos and filter responses to a fraction of their raw size.
+ *
+ * Files are written to a temporary name and moved into place, so a reader never sees a
+ * half-written one, and any file that can't be read is treated as a miss. Once the files
+ * add up to more than the limit, the least recently used are deleted.
+ */
+public final class DiskCache {
+
+    /**
+     * First word of every file, "CW25"
+     */
+    private static final int MAGIC = 0x43573235;
+
+    /**
+     * Most pixels a cached raster may have; a header claiming more is taken to be corrupt
+     */
+    private static final long MAX_PIXELS = 1L << 28;
+
+    /**
+     * Extension of the cache's files
+     */
+    private static final String EXTENSION = ".raster";
+
+    /**
+     * Directory the files are kept in
+     */
+    private final Path directory;
+
+    /**
+     * Most bytes of files kept at once
+     */
+    private final long maxBytes;
+
+    /**
+     * Number of lookups that found a raster
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of lookups that found nothing
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of rasters written
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param directory Directory the files are kept in, created if it doesn't exist
+     * @param maxBytes  Most bytes of files kept at once
+     */
+    public DiskCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return Directory given by -Dcw255.cache, or .cache/cw255 in the user's home directory
+     */
+    public static Path defaultDirectory() {
+        String property = System.getProperty("cw255.cache");
+        return property != null ? Path.of(property) : Path.of(System.getProperty("user.home"), ".cache", "cw255");
+    }
+
+    /**
+     * Hashes a raster's size and pixels, so a key can name its content rather than where it came from
+     *
+     * @param raster Raster to hash
+     * @return SHA-256 of the raster, in hex
+     */
+    public static String hash(Raster raster) {
+        MessageDigest digest = sha256();
+        ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+        bytes.putInt(raster.width).putInt(raster.height);
+
+        // Feeds the pixels through a fixed-size buffer, rather than copying them all at once
+        int length = raster.width * raster.height;
+        for (int i = 0; i < length; ) {
+            int count = Math.min(length - i, bytes.remaining() / Integer.BYTES);
+            bytes.asIntBuffer().put(raster.pixels, i, count);
+            bytes.position(bytes.position() + count * Integer.BYTES);
+            i += count;
+            bytes.flip();
+            digest.update(bytes);
+            bytes.clear();
+        }
+        bytes.flip();
+        digest.update(bytes);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Looks up a raster, marking it as most recently used
+     *
+     * @param key Text naming the raster
+     * @return Stored raster, or null if there isn't one or it can't be read
+     */
+    public Raster get(String key) {
+        Path file = fileFor(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cached raster");
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+                throw new IOException("Cached raster has a bad size: " + width + "x" + height);
+            }
+            Raster raster = new Raster(width, height);
+
+            // Undoes the filter a row at a time, as it's read
+            byte[] row = new byte[width * Integer.BYTES];
+            try (InputStream pixels = new InflaterInputStream(in)) {
+                for (int y = 0; y < height; y++) {
+                    readFully(pixels, row);
+                    ByteBuffer.wrap(row).asIntBuffer().get(raster.pixels, y * width, width);
+                    unfilterRow(raster.pixels, y * width, width);
+                }
+            }
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return raster;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException | RuntimeException e) {
+
+            // Corrupt or from another version, so will be written again
+            deleteQuietly(file);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a raster, then deletes the least recently used files until they fit.
+     * Failing to write is not an error, as the raster can always be worked out again.
+     * Empty rasters and ones over MAX_PIXELS aren't stored, as they'd be read back as corrupt.
+     *
+     * @param key    Text naming the raster
+     * @param raster Raster to store
+     */
+    public void put(String key, Raster raster) {
+        if (raster.width <= 0 || raster.height <= 0 || (long) raster.width * raster.height > MAX_PIXELS) {
+            return;
+        }
+
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, "put", ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(raster.width);
+                out.writeInt(raster.height);
+
+                // Filters and deflates a row at a time, so only one row is copied at once
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                int[] filtered = new int[raster.width];
+                ByteBuffer row = ByteBuffer.allocate(raster.width * Integer.BYTES);
+                try (OutputStream pixels = new DeflaterOutputStream(out, deflater, 64 * 1024)) {
+                    for (int y = 0; y < raster.height; y++) {
+                        filterRow(raster.pixels, y * raster.width, filtered, raster.width);
+                        row.clear();
+                        row.asIntBuffer().put(filtered);
+                        pixels.write(row.array());
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            Files.move(temporary, fileFor(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writes.incrementAndGet();
+            evict();
+        } catch (IOException e) {
+            System.err.println("Couldn't cache " + key + ": " + e.getMessage());
+            if (temporary != null) {
+                deleteQuietly(temporary);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the rest fit in the limit
+     *
+     * @throws IOException If the directory can't be listed
+     */
+    private void evict() throws IOException {
+        record Entry(Path file, long size, FileTime used) {
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                try {
+                    Entry entry = new Entry(file, Files.size(file), Files.getLastModifiedTime(file));
+                    entries.add(entry);
+                    bytes += entry.size();
+                } catch (NoSuchFileException e) {
+
+                    // Deleted by another thread since being listed
+                }
+            }
+        }
+
+        entries.sort(Comparator.comparing(Entry::used));
+        for (int i = 0; bytes > maxBytes && i < entries.size(); i++) {
+            deleteQuietly(entries.get(i).file());
+            bytes -= entries.get(i).size();
+        }
+    }
+
+    /**
+     * Replaces each pixel of a row by its difference from the one to its left, channel by channel
+     *
+     * @param pixels   Pixels holding the row
+     * @param offset   Index of the row's first pixel
+     * @param filtered Filtered row, written to
+     * @param width    Number of pixels in the row
+     */
+    static void filterRow(int[] pixels, int offset, int[] filtered, int width) {
+        int left = 0;
+        for (int x = 0; x < width; x++) {
+            int pixel = pixels[offset + x];
+
+            // Subtracts all four bytes at once, each wrapping round on its own
+            filtered[x] = ((pixel | 0x80808080) - (left & 0x7F7F7F7F)) ^ ((pixel ^ ~left) & 0x80808080);
+            left = pixel;
+        }
+    }
+
+    /**
+     * Undoes filterRow in place, adding each pixel's difference to the one to its left
+     *
+     * @param pixels Pixels holding the filtered row
+     * @param offset Index of the row's first pixel
+     * @param width  Number of pixels in the row
+     */
+    static void unfilterRow(int[] pixels, int offset, int width) {
+        int left = 0;
+        for (int x = 0; x < width; x++) {
+            int difference = pixels[offset + x];
+
+            // Adds all four bytes at once, each wrapping round on its own
+            left = ((difference & 0x7F7F7F7F) + (left & 0x7F7F7F7F)) ^ ((difference ^ left) & 0x80808080);
+            pixels[offset + x] = left;
+        }
+    }
+
+    /**
+     * @param key Text naming a raster
+     * @return File the raster is stored in
+     */
+    private Path fileFor(String key) {
+        byte[] digest = sha256().digest(key.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(HexFormat.of().formatHex(digest) + EXTENSION);
+    }
+
+    /**
+     * @param in     Stream to read
+     * @param buffer Filled completely
+     * @throws IOException If the stream ends first
+     */
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        if (in.readNBytes(buffer, 0, buffer.length) != buffer.length) {
+            throw new IOException("Cached raster is cut short");
+        }
+    }
+
+    /**
+     * @param file File to delete, if it's still there
+     */
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+
+            // Left for the next eviction
+        }
+    }
+
+    /**
+     * @return New SHA-256 digest, which every JVM has
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Directory the files are kept in
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Number of lookups that found a raster
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of lookups that found nothing
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of rasters written
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d writes, %.1f MB limit",
+                hits.get(), misses.get(), writes.get(), maxBytes / 1048576.0);
+    }
+}
@@ -1,14 +0,0 @@
-package me.ewanl.cw255;
-
-public class FauxColor {
-
-    int r, g, b;
-
-    public FauxColor(int r, int g, int b){
-        this.r = r; this.g = g; this.b = b;
-    }
-
-    public int getR(){ return r; }
-    public int getG(){ return g; }
-    public int getB(){ return b; }
-}
@@ -0,0 +1,310 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+
+/**
+ * Correlates large kernels by multiplying Fourier transforms of overlapping blocks.
+ *
+ * Each band of output rows is one block high, and reads a power-of-two square of the
+ * source for each block along it, overlapping the next by the kernel size. Every square
+ * is transformed, multiplied by the kernel's transform, and transformed back; only the
+ * results that didn't wrap round its edges are kept, and those are exactly the block's
+ * responses, so no block's results need adding to another's. Red and green go through
+ * one complex transform as its real and imaginary parts, and blue through another.
+ *
+ * Weights and pixels are integers, and every response fits in an int, so rounding the
+ * result gives exactly the same responses as the direct path.
+ */
+final class FftConvolution {
+
+    /**
+     * Smallest transform used, however small the kernel
+     */
+    private static final int MIN_SIZE = 32;
+
+    /**
+     * Largest transform used, however large the kernel
+     */
+    private static final int MAX_SIZE = 128;
+
+    private FftConvolution() {
+    }
+
+    /**
+     * Transform of a kernel, and the tables for transforms of its size
+     */
+    static final class Spectrum {
+
+        /**
+         * Width and height of the transforms, a power of two
+         */
+        final int size;
+
+        /**
+         * Width and height of the block of responses each transform gives
+         */
+        final int block;
+
+        /**
+         * Real and imaginary parts of the flipped kernel's transform, scaled for the inverse transform
+         */
+        final double[] real;
+        final double[] imaginary;
+
+        /**
+         * cos and sin of each step round the unit circle, for the butterflies
+         */
+        final double[] cos;
+        final double[] sin;
+
+        /**
+         * Index each element moves to in the bit-reversal permutation
+         */
+        final int[] reversed;
+
+        Spectrum(int size, int block) {
+            this.size = size;
+            this.block = block;
+            this.real = new double[size * size];
+            this.imaginary = new double[size * size];
+            this.cos = new double[size / 2];
+            this.sin = new double[size / 2];
+            this.reversed = new int[size];
+
+            for (int i = 0; i < size / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / size);
+                sin[i] = Math.sin(2 * Math.PI * i / size);
+            }
+            int bits = Integer.numberOfTrailingZeros(size);
+            for (int i = 0; i < size; i++) {
+                reversed[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+    }
+
+    /**
+     * Works out the transform of a kernel, picking the transform size that does the least work per response
+     *
+     * @param kernel Kernel to transform
+     * @return The kernel's spectrum
+     */
+    static Spectrum spectrum(Kernel kernel) {
+        int span = Math.max(kernel.width, kernel.height) - 1;
+
+        // Each transform costs about size^2 log(size), and gives (size - span)^2 responses that don't wrap
+        int size = MIN_SIZE;
+        for (int candidate = MIN_SIZE; candidate <= MAX_SIZE; candidate <<= 1) {
+            if (candidate > span && cost(candidate, span) < cost(size, span)) {
+                size = candidate;
+            }
+        }
+        Spectrum spectrum = new Spectrum(size, size - span);
+
+        // Correlating is convolving with the kernel turned upside down and back to front
+        for (int y = 0; y < kernel.height; y++) {
+            for (int x = 0; x < kernel.width; x++) {
+                spectrum.real[y * size + x] = kernel.getWeight(kernel.width - 1 - x, kernel.height - 1 - y);
+            }
+        }
+        transform(spectrum, spectrum.real, spectrum.imaginary, false);
+
+        // Folds the inverse transform's 1 / (size * size) in here, rather than into every block
+        double scale = 1.0 / ((double) size * size);
+        for (int i = 0; i < size * size; i++) {
+            spectrum.real[i] *= scale;
+            spectrum.imaginary[i] *= scale;
+        }
+        return spectrum;
+    }
+
+    /**
+     * @param size Width and height of a transform
+     * @param span Kernel size less one, which each block overlaps the next by
+     * @return Relative work per response
+     */
+    private static double cost(int size, int span) {
+        double block = size - span;
+        return (double) size * size * Integer.numberOfTrailingZeros(size) / (block * block);
+    }
+
+    /**
+     * Works out the raw responses of one band of output rows, at most one block high
+     *
+     * @param source    Raster being filtered
+     * @param kernel    Kernel to correlate with
+     * @param spectrum  The kernel's spectrum
+     * @param responses Planes the responses are written to
+     * @param startRow  First output row of the band
+     * @param endRow    Row after the last output row of the band
+     * @return Min/max of the band's responses
+     */
+    static int[] responsesBand(Raster source, Kernel kernel, Spectrum spectrum, ConvolutionEngine.Responses responses,
+                               int startRow, int endRow) {
+        int width = source.width;
+        int outWidth = responses.width;
+        int size = spectrum.size;
+        int offsetX = kernel.width - 1;
+        int offsetY = kernel.height - 1;
+
+        // Red + i green, and blue + i 0, of one padded block
+        double[] redGreenReal = new double[size * size], redGreenImaginary = new double[size * size];
+        double[] blueReal = new double[size * size], blueImaginary = new double[size * size];
+
+        // Source rows under the band, and those rows' transformed results that don't wrap
+        int rows = Math.min(size, source.height - startRow);
+        int[] range = ConvolutionEngine.emptyRange();
+
+        for (int blockX = 0; blockX < outWidth; blockX += spectrum.block) {
+            int columns = Math.min(size, width - blockX);
+            int blockWidth = Math.min(spectrum.block, outWidth - blockX);
+            CancellationToken.current().throwIfCancelled();
+
+            // Unpacks the source under the block into the top left of the padded planes
+            Arrays.fill(redGreenImaginary, 0);
+            Arrays.fill(blueImaginary, 0);
+            if (rows < size || columns < size) {
+                Arrays.fill(redGreenReal, 0);
+                Arrays.fill(blueReal, 0);
+            }
+            for (int y = 0; y < rows; y++) {
+                int srcOffset = (startRow + y) * width + blockX;
+                for (int x = 0; x < columns; x++) {
+                    int argb = source.pixels[srcOffset + x];
+                    redGreenReal[y * size + x] = (argb >>> 16) & 0xFF;
+                    redGreenImaginary[y * size + x] = (argb >>> 8) & 0xFF;
+                    blueReal[y * size + x] = argb & 0xFF;
+                }
+            }
+
+            transform(spectrum, redGreenReal, redGreenImaginary, false);
+            transform(spectrum, blueReal, blueImaginary, false);
+
+            // Both transforms are transposed the same way, so can be multiplied as they are
+            multiply(redGreenReal, redGreenImaginary, spectrum);
+            multiply(blueReal, blueImaginary, spectrum);
+            transform(spectrum, redGreenReal, redGreenImaginary, true);
+            transform(spectrum, blueReal, blueImaginary, true);
+
+            // The results below and right of the kernel's size didn't wrap, and round back to the exact responses
+            for (int y = startRow; y < endRow; y++) {
+                int blockOffset = (y - startRow + offsetY) * size + offsetX;
+                int outOffset = y * outWidth + blockX;
+                for (int x = 0; x < blockWidth; x++) {
+                    responses.red[outOffset + x] = (int) Math.round(redGreenReal[blockOffset + x]);
+                    responses.green[outOffset + x] = (int) Math.round(redGreenImaginary[blockOffset + x]);
+                    responses.blue[outOffset + x] = (int) Math.round(blueReal[blockOffset + x]);
+                }
+                ConvolutionEngine.widenRange(range, responses.red, responses.green, responses.blue,
+                        outOffset, outOffset + blockWidth);
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Multiplies a transformed block by the kernel's transform, element by element
+     *
+     * @param real      Real parts of the block, replaced by the product's
+     * @param imaginary Imaginary parts of the block, replaced by the product's
+     * @param spectrum  The kernel's spectrum
+     */
+    private static void multiply(double[] real, double[] imaginary, Spectrum spectrum) {
+        double[] kernelReal = spectrum.real, kernelImaginary = spectrum.imaginary;
+        for (int i = 0; i < real.length; i++) {
+            double re = real[i] * kernelReal[i] - imaginary[i] * kernelImaginary[i];
+            imaginary[i] = real[i] * kernelImaginary[i] + imaginary[i] * kernelReal[i];
+            real[i] = re;
+        }
+    }
+
+    /**
+     * 2-D transform in place, leaving the result transposed: a transform down the columns,
+     * a transpose, then another down the columns. The inverse of a transposed result is
+     * the right way round again. Neither direction is scaled.
+     *
+     * @param spectrum  Tables for the transform's size
+     * @param real      Real parts, size x size
+     * @param imaginary Imaginary parts, size x size
+     * @param inverse   Whether to run the inverse transform
+     */
+    private static void transform(Spectrum spectrum, double[] real, double[] imaginary, boolean inverse) {
+        transformColumns(spectrum, real, imaginary, inverse);
+        transpose(real, spectrum.size);
+        transpose(imaginary, spectrum.size);
+        transformColumns(spectrum, real, imaginary, inverse);
+    }
+
+    /**
+     * Radix-2 transform of every column at once, unscaled. Each butterfly combines two
+     * whole rows, so the inner loops run along contiguous memory.
+     *
+     * @param spectrum  Tables for the transform's size
+     * @param real      Real parts, size x size
+     * @param imaginary Imaginary parts, size x size
+     * @param inverse   Whether to run the inverse transform
+     */
+    private static void transformColumns(Spectrum spectrum, double[] real, double[] imaginary, boolean inverse) {
+        int size = spectrum.size;
+        int[] reversed = spectrum.reversed;
+
+        // Bit-reversal permutation of the rows, so the butterflies can run in place
+        double[] swap = new double[size];
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                swapRows(real, i * size, j * size, swap);
+                swapRows(imaginary, i * size, j * size, swap);
+            }
+        }
+
+        double sign = inverse ? 1 : -1;
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double wRe = spectrum.cos[k * step];
+                    double wIm = sign * spectrum.sin[k * step];
+                    int even = (start + k) * size;
+                    int odd = even + half * size;
+                    for (int x = 0; x < size; x++) {
+                        double oddRe = real[odd + x] * wRe - imaginary[odd + x] * wIm;
+                        double oddIm = real[odd + x] * wIm + imaginary[odd + x] * wRe;
+                        real[odd + x] = real[even + x] - oddRe;
+                        imaginary[odd + x] = imaginary[even + x] - oddIm;
+                        real[even + x] += oddRe;
+                        imaginary[even + x] += oddIm;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param values Square of values, size x size
+     * @param a      Index of the first row's first value
+     * @param b      Index of the second row's first value
+     * @param swap   Spare row to swap through
+     */
+    private static void swapRows(double[] values, int a, int b, double[] swap) {
+        System.arraycopy(values, a, swap, 0, swap.length);
+        System.arraycopy(values, b, values, a, swap.length);
+        System.arraycopy(swap, 0, values, b, swap.length);
+    }
+
+    /**
+     * Transposes a square in place
+     *
+     * @param values Square of values, size x size
+     * @param size   Width and height of the square
+     */
+    private static void transpose(double[] values, int size) {
+        for (int y = 0; y < size; y++) {
+            for (int x = y + 1; x < size; x++) {
+                double value = values[y * size + x];
+                values[y * size + x] = values[x * size + y];
+                values[x * size + y] = value;
+            }
+        }
+    }
+}
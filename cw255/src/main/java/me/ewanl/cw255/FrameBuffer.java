@@ -0,0 +1,191 @@
+package me.ewanl.cw255;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Pair of images whose pixels are shared with rasters, so renders write straight into
+ * what is shown rather than into a raster that is then copied into a new image.
+ *
+ * A render writes into the back frame while the front one is on screen, then the two
+ * are swapped. Only the rectangle of pixels that can differ from what the back frame's
+ * texture last held is marked as changed, so a render that changes part of the image
+ * (or nothing, e.g. a tile re-rendered the same) uploads only that part. Frames are kept
+ * while renders stay the same size, so a steady stream of renders allocates nothing.
+ *
+ * The back frame is only written by renders from a RenderScheduler, and swapped in by
+ * their publish step. A render only starts after it's submitted, which stops the older
+ * render's publish from swapping, so the frame being written is never the one shown.
+ *
+ * Frames use a heap IntBuffer wrapping the raster's array, so the kernels can write to
+ * them with plain array indexing. JavaFX only shows premultiplied pixels this way, which
+ * for opaque pixels are the same as the rasters' own, so only translucent ones are converted.
+ */
+public final class FrameBuffer {
+
+    /**
+     * Front and back frames, either of which may be null until first used
+     */
+    private final Frame[] frames = new Frame[2];
+
+    /**
+     * Index of the frame on screen
+     */
+    private int front;
+
+    /**
+     * Bounds of the pixels each frame changed when it was last shown, compared with the frame
+     * shown before it, as [minX, minY, maxX, maxY) or empty; null for a frame not yet shown
+     */
+    private final int[][] changes = new int[2][];
+
+    /**
+     * Raster sharing its pixels with an image
+     *
+     * @param raster Pixels written by renders
+     * @param buffer Buffer wrapping the raster's pixels
+     * @param image  Image showing the buffer
+     */
+    private record Frame(Raster raster, PixelBuffer<IntBuffer> buffer, WritableImage image) {
+    }
+
+    /**
+     * Gets the raster a render should write into, reusing the back frame if it's the right size.
+     * The raster's pixels must be premultiplied before it's shown.
+     *
+     * @param width  Width of the render
+     * @param height Height of the render
+     * @return Raster of the back frame
+     */
+    public synchronized Raster back(int width, int height) {
+        Frame back = frames[1 - front];
+        if (back == null || back.raster().width != width || back.raster().height != height) {
+            back = wrap(new Raster(width, height));
+            frames[1 - front] = back;
+            changes[1 - front] = null;
+        }
+        return back.raster();
+    }
+
+    /**
+     * Swaps a finished render onto the screen, marking the pixels that changed.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param written Raster returned by back, holding the render
+     * @return Image to show, which stays the same object while the size does
+     */
+    public synchronized WritableImage show(Raster written) {
+        Frame back = frames[1 - front];
+        if (back == null || back.raster() != written) {
+            throw new IllegalStateException("Raster is not the back frame");
+        }
+        Frame shown = frames[front];
+        int[] full = {0, 0, written.width, written.height};
+
+        // The back frame's texture still holds what it showed before the front frame, so needs
+        // whatever differs from the front frame plus whatever the front frame changed in turn;
+        // a frame never shown, or following one of another size, needs everything
+        int[] changed, dirty;
+        if (changes[1 - front] == null || shown == null || changes[front] == null
+                || shown.raster().width != written.width || shown.raster().height != written.height) {
+            changed = full;
+            dirty = full;
+        } else {
+            changed = difference(shown.raster(), written);
+            dirty = union(changed, changes[front]);
+        }
+        changes[1 - front] = changed;
+        front = 1 - front;
+
+        back.buffer().updateBuffer(buffer -> dirty.length == 0 ? Rectangle2D.EMPTY
+                : new Rectangle2D(dirty[0], dirty[1], dirty[2] - dirty[0], dirty[3] - dirty[1]));
+        return back.image();
+    }
+
+    /**
+     * Finds the bounds of the pixels that differ between two rasters of the same size, a band at a time
+     *
+     * @param before Raster shown before
+     * @param after  Raster shown after
+     * @return Bounds as [minX, minY, maxX, maxY), or empty if every pixel is the same
+     */
+    static int[] difference(Raster before, Raster after) {
+        int width = after.width;
+        return TileScheduler.getDefault().reduceBands(width, after.height, (startRow, endRow) -> {
+            int[] bounds = new int[0];
+            for (int y = startRow; y < endRow; y++) {
+                int offset = y * width;
+                int left = Arrays.mismatch(before.pixels, offset, offset + width, after.pixels, offset, offset + width);
+                if (left < 0) {
+                    continue;
+                }
+                int right = width - 1;
+                while (before.pixels[offset + right] == after.pixels[offset + right]) {
+                    right--;
+                }
+                bounds = union(bounds, new int[]{left, y, right + 1, y + 1});
+            }
+            return bounds;
+        }, FrameBuffer::union);
+    }
+
+    /**
+     * @param a Bounds as [minX, minY, maxX, maxY), or empty
+     * @param b Bounds as [minX, minY, maxX, maxY), or empty
+     * @return Smallest bounds holding both, or empty if both are
+     */
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        return new int[]{Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.max(a[2], b[2]), Math.max(a[3], b[3])};
+    }
+
+    /**
+     * Converts a raster's pixels to premultiplied alpha in place, leaving opaque pixels alone
+     *
+     * @param raster Raster to convert
+     */
+    public static void premultiply(Raster raster) {
+        int[] pixels = raster.pixels;
+        TileScheduler.getDefault().forEachBand(raster.width, raster.height, (startRow, endRow) -> {
+            for (int i = startRow * raster.width; i < endRow * raster.width; i++) {
+                int alpha = pixels[i] >>> 24;
+                if (alpha != 0xFF) {
+                    pixels[i] = premultiply(pixels[i], alpha);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param argb  Non-premultiplied pixel
+     * @param alpha Its alpha
+     * @return Pixel with each colour scaled by its alpha, rounding to nearest
+     */
+    private static int premultiply(int argb, int alpha) {
+        int red = ((argb >> 16 & 0xFF) * alpha + 127) / 255;
+        int green = ((argb >> 8 & 0xFF) * alpha + 127) / 255;
+        int blue = ((argb & 0xFF) * alpha + 127) / 255;
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * @param raster Raster to share with an image
+     * @return Frame showing the raster's pixels
+     */
+    private static Frame wrap(Raster raster) {
+        IntBuffer pixels = IntBuffer.wrap(raster.pixels, 0, raster.width * raster.height);
+        PixelBuffer<IntBuffer> buffer = new PixelBuffer<>(raster.width, raster.height, pixels,
+                PixelFormat.getIntArgbPreInstance());
+        return new Frame(raster, buffer, new WritableImage(buffer));
+    }
+}
@@ -0,0 +1,177 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable lookup-table mapping each 8-bit channel value to its gamma-corrected
+ * value. Tables are shared through a small cache keyed by gamma rounded to 3dp,
+ * so any number of renders at different gammas can use them at once.
+ */
+public final class GammaLut {
+
+    /**
+     * Number of tables kept in the cache
+     */
+    private static final int CACHE_SIZE = 32;
+
+    /**
+     * Gamma values are rounded to a multiple of 1 / GAMMA_QUANTUM before lookup
+     */
+    private static final double GAMMA_QUANTUM = 1000.0;
+
+    /**
+     * Most recently used tables, keyed by quantized gamma
+     */
+    private static final Map<Long, GammaLut> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, GammaLut> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Gamma value the table was built for, or the product of both for a composed table
+     */
+    private final double gamma;
+
+    /**
+     * Whether the table leaves every value unchanged
+     */
+    private final boolean identity;
+
+    /**
+     * Output channel value for each input channel value
+     */
+    private final byte[] table = new byte[256];
+
+    /**
+     * The same table widened to ints, which the vector gathers index into
+     */
+    private final int[] intTable = new int[256];
+
+    /**
+     * Builds the table for a gamma value
+     *
+     * @param gamma Gamma value
+     */
+    private GammaLut(double gamma) {
+        this.gamma = gamma;
+        boolean identity = true;
+        for (int i = 0; i < 256; i++) {
+            table[i] = (byte) Math.round(Math.pow((double) i / 255.0, 1.0 / gamma) * 255.0);
+            intTable[i] = table[i] & 0xFF;
+            identity &= intTable[i] == i;
+        }
+        this.identity = identity;
+    }
+
+    /**
+     * Builds a table mapping each value through one table, then another
+     *
+     * @param first  Table applied first
+     * @param second Table applied second
+     */
+    private GammaLut(GammaLut first, GammaLut second) {
+        this.gamma = first.gamma * second.gamma;
+        boolean identity = true;
+        for (int i = 0; i < 256; i++) {
+            table[i] = second.table[first.table[i] & 0xFF];
+            intTable[i] = table[i] & 0xFF;
+            identity &= intTable[i] == i;
+        }
+        this.identity = identity;
+    }
+
+    /**
+     * Gets the table for a gamma value, reusing a cached one where possible
+     *
+     * @param gamma Gamma value
+     * @return Lookup-table for the gamma value, rounded to 3dp
+     */
+    public static GammaLut forGamma(double gamma) {
+        long key = Math.round(gamma * GAMMA_QUANTUM);
+        synchronized (cache) {
+            return cache.computeIfAbsent(key, k -> new GammaLut(k / GAMMA_QUANTUM));
+        }
+    }
+
+    /**
+     * Composes this table with another. Each step's output is rounded to 8 bits before the next
+     * looks it up, so the result is exactly that of applying one then the other, which a single
+     * table for the product of their gammas isn't.
+     *
+     * @param next Table applied second
+     * @return Table mapping each value through this one, then next
+     */
+    public GammaLut then(GammaLut next) {
+        return new GammaLut(this, next);
+    }
+
+    /**
+     * @return Gamma value the table was built for, or the product of both for a composed table
+     */
+    public double getGamma() {
+        return gamma;
+    }
+
+    /**
+     * @return Whether the table leaves every value unchanged
+     */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GammaLut other && Arrays.equals(other.table, table);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(table);
+    }
+
+    /**
+     * Looks up a single channel value
+     *
+     * @param channel 8-bit channel value
+     * @return Gamma-corrected channel value
+     */
+    public int applyToChannel(int channel) {
+        return table[channel] & 0xFF;
+    }
+
+    /**
+     * Gamma-corrects the red, green, and blue channels of a packed pixel, keeping its alpha
+     *
+     * @param argb Packed ARGB pixel
+     * @return Gamma-corrected pixel
+     */
+    public int apply(int argb) {
+        return (argb & 0xFF000000)
+                | ((table[(argb >>> 16) & 0xFF] & 0xFF) << 16)
+                | ((table[(argb >>> 8) & 0xFF] & 0xFF) << 8)
+                | (table[argb & 0xFF] & 0xFF);
+    }
+
+    /**
+     * Gamma-corrects a run of packed pixels
+     *
+     * @param src       Source pixels
+     * @param srcOffset Index of the first source pixel
+     * @param dst       Destination pixels, may be the same array as src
+     * @param dstOffset Index of the first destination pixel
+     * @param length    Number of pixels
+     */
+    public void apply(int[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        if (Simd.ENABLED && length >= Simd.MIN_LENGTH) {
+            VectorKernels.applyLut(intTable, src, srcOffset, dst, dstOffset, length);
+            return;
+        }
+        for (int p = 0; p < length; p++) {
+            dst[dstOffset + p] = apply(src[srcOffset + p]);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package me.ewanl.cw255;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Times every image operation, emitting a Flight Recorder OperationEvent for each
+ * and keeping a rolling LatencyHistogram per operation for the in-app overlay.
+ *
+ * Allocation is read from the calling thread's counter, so it includes the output
+ * raster but not scratch buffers allocated on TileScheduler's pool workers.
+ */
+public final class Instrumentation {
+
+    /**
+     * Latencies by operation name
+     */
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    /**
+     * Per-thread allocation counter, or null if the JVM doesn't support one
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Runs and times an operation producing a raster
+     *
+     * @param operation  Name of the operation
+     * @param input      Raster the operation reads
+     * @param gammaFused Whether gamma correction is applied as the output is written
+     * @param body       The operation
+     * @return Output of the operation
+     */
+    public static Raster measure(String operation, Raster input, boolean gammaFused, Supplier<Raster> body) {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        Raster output = body.get();
+
+        record(event, operation, start, allocatedBefore, input.width, input.height,
+                output.width, output.height, gammaFused);
+        return output;
+    }
+
+    /**
+     * Runs and times an operation that shows or converts an image without resizing it
+     *
+     * @param operation Name of the operation
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param body      The operation
+     * @param <T>       Type of result
+     * @return Result of the operation
+     */
+    public static <T> T measure(String operation, int width, int height, Supplier<T> body) {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        T result = body.get();
+
+        record(event, operation, start, allocatedBefore, width, height, width, height, false);
+        return result;
+    }
+
+    /**
+     * Records a finished operation in its histogram and, if Flight Recorder wants it, as an event
+     */
+    private static void record(OperationEvent event, String operation, long start, long allocatedBefore,
+                               int inputWidth, int inputHeight, int outputWidth, int outputHeight, boolean gammaFused) {
+        long duration = System.nanoTime() - start;
+        histogram(operation).record(duration);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.inputWidth = inputWidth;
+            event.inputHeight = inputHeight;
+            event.outputWidth = outputWidth;
+            event.outputHeight = outputHeight;
+            event.gammaFused = gammaFused;
+            event.bytesAllocated = allocatedBytes() - allocatedBefore;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param operation Name of the operation
+     * @return Histogram of the operation's latencies, created if needed
+     */
+    public static LatencyHistogram histogram(String operation) {
+        return HISTOGRAMS.computeIfAbsent(operation, name -> new LatencyHistogram());
+    }
+
+    /**
+     * @return Every operation's histogram, sorted by name
+     */
+    public static Map<String, LatencyHistogram> histograms() {
+        return new TreeMap<>(HISTOGRAMS);
+    }
+
+    /**
+     * @return One line per operation with its last, p50, p95, and p99 latencies
+     */
+    public static String summary() {
+        StringBuilder builder = new StringBuilder();
+        histograms().forEach((operation, histogram) ->
+                builder.append(String.format("%-16s %s%n", operation, histogram)));
+        return builder.toString();
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or 0 if unknown
+     */
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * @return Thread bean able to count allocation, or null if there isn't one
+     */
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+package me.ewanl.cw255;
+
+/**
+ * Interpolation styles the image can be resized with
+ */
+public enum Interpolation {
+
+    /**
+     * Copies the nearest source pixel
+     */
+    NEAREST_NEIGHBOUR,
+
+    /**
+     * Blends the four surrounding source pixels
+     */
+    BILINEAR,
+
+    /**
+     * Blends the 4x4 surrounding source pixels with a Catmull-Rom cubic, sharper than bilinear
+     */
+    BICUBIC,
+
+    /**
+     * Blends the 6x6 surrounding source pixels with a Lanczos-3 windowed sinc, the sharpest
+     */
+    LANCZOS3
+}
@@ -0,0 +1,388 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable grid of integer weights for a cross correlation filter.
+ *
+ * Kernels are registered by name, so the UI and command line can offer every one of them.
+ * A kernel whose weights are the product of a column and a row of weights (rank 1, e.g. a
+ * box or gaussian blur) is split into those two on creation, so it can be applied as two
+ * 1-D passes.
+ */
+public final class Kernel {
+
+    /**
+     * Largest width or height of a kernel
+     */
+    public static final int MAX_SIZE = 31;
+
+    /**
+     * Registered kernels, by name with case and punctuation removed
+     */
+    private static final Map<String, Kernel> registry = new LinkedHashMap<>();
+
+    /**
+     * The 5x5 laplacian the cross correlation filter has always used
+     */
+    public static final Kernel LAPLACIAN = register(new Kernel("Laplacian", 5, 5, new int[]{
+            -4, -1, 0, -1, -4,
+            -1, 2, 3, 2, -1,
+            0, 3, 4, 3, 0,
+            -1, 2, 3, 2, -1,
+            -4, -1, 0, -1, -4}));
+
+    /**
+     * 3x3 edge detector, responding to change in any direction
+     */
+    public static final Kernel EDGE = register(new Kernel("Edge", 3, 3, new int[]{
+            -1, -1, -1,
+            -1, 8, -1,
+            -1, -1, -1}));
+
+    /**
+     * 3x3 sharpen, adding the edges back onto the image
+     */
+    public static final Kernel SHARPEN = register(new Kernel("Sharpen", 3, 3, new int[]{
+            0, -1, 0,
+            -1, 5, -1,
+            0, -1, 0}));
+
+    /**
+     * 3x3 Sobel operator for vertical edges
+     */
+    public static final Kernel SOBEL_X = register(new Kernel("Sobel X", 3, 3, new int[]{
+            -1, 0, 1,
+            -2, 0, 2,
+            -1, 0, 1}));
+
+    /**
+     * 15x15 box blur
+     */
+    public static final Kernel BOX_BLUR = register(box("Box blur", 15));
+
+    /**
+     * 31x31 gaussian blur, sigma 5
+     */
+    public static final Kernel GAUSSIAN_BLUR = register(gaussian("Gaussian blur", 31, 5));
+
+    /**
+     * 31x31 disc ("bokeh") blur, which unlike the other blurs can't be split into two passes
+     */
+    public static final Kernel DISC_BLUR = register(disc("Disc blur", 31));
+
+    /**
+     * Name shown to the user
+     */
+    private final String name;
+
+    /**
+     * Number of columns of weights
+     */
+    final int width;
+
+    /**
+     * Number of rows of weights
+     */
+    final int height;
+
+    /**
+     * Weights, row by row
+     */
+    final int[] weights;
+
+    /**
+     * Single row of weights that, run down the columnFactor, gives this kernel; null if there isn't one
+     */
+    final Kernel rowFactor;
+
+    /**
+     * Single column of weights that, run along the rowFactor, gives this kernel; null if there isn't one
+     */
+    final Kernel columnFactor;
+
+    /**
+     * @param name    Name shown to the user
+     * @param width   Number of columns of weights, odd and at most MAX_SIZE
+     * @param height  Number of rows of weights, odd and at most MAX_SIZE
+     * @param weights Weights, row by row, small enough that 255 x the sum of their sizes fits in an int
+     */
+    public Kernel(String name, int width, int height, int[] weights) {
+        if (width <= 0 || height <= 0 || width % 2 == 0 || height % 2 == 0) {
+            throw new IllegalArgumentException("Kernel size must be odd, was " + width + "x" + height);
+        }
+        if (width > MAX_SIZE || height > MAX_SIZE) {
+            throw new IllegalArgumentException("Kernel can be at most " + MAX_SIZE + "x" + MAX_SIZE
+                    + ", was " + width + "x" + height);
+        }
+        if (weights.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " weights, got " + weights.length);
+        }
+
+        // Responses are summed in ints, so the largest possible one must fit
+        long total = 0;
+        for (int weight : weights) {
+            total += Math.abs((long) weight);
+        }
+        if (total * 255 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Weights of " + name + " are too large to sum in an int");
+        }
+
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+
+        // Only 2-D kernels are worth splitting, which also stops the factors splitting themselves
+        Kernel[] factors = (width > 1 && height > 1) ? factorise(name, width, height, this.weights) : null;
+        this.rowFactor = factors == null ? null : factors[0];
+        this.columnFactor = factors == null ? null : factors[1];
+    }
+
+    /**
+     * Splits a rank 1 kernel into a row and a column of integer weights whose product it is
+     *
+     * @param name    Name of the kernel
+     * @param width   Number of columns of weights
+     * @param height  Number of rows of weights
+     * @param weights Weights, row by row
+     * @return Row and column factors, or null if the kernel isn't rank 1 (or is all zeros)
+     */
+    private static Kernel[] factorise(String name, int width, int height, int[] weights) {
+
+        // The first non-zero row, divided by its common factor, is the row every other row must be a multiple of
+        int first = 0;
+        while (first < height && isZero(weights, first * width, width)) {
+            first++;
+        }
+        if (first == height) {
+            return null;
+        }
+        int[] row = Arrays.copyOfRange(weights, first * width, (first + 1) * width);
+        int divisor = 0;
+        for (int weight : row) {
+            divisor = gcd(divisor, Math.abs(weight));
+        }
+        int pivot = 0;
+        for (int x = 0; x < width; x++) {
+            row[x] /= divisor;
+            if (row[x] != 0 && row[pivot] == 0) {
+                pivot = x;
+            }
+        }
+
+        // Each row's multiple is read off at the pivot, and must give back every weight in the row exactly
+        int[] column = new int[height];
+        for (int y = 0; y < height; y++) {
+            int weight = weights[y * width + pivot];
+            if (weight % row[pivot] != 0) {
+                return null;
+            }
+            column[y] = weight / row[pivot];
+            for (int x = 0; x < width; x++) {
+                if (weights[y * width + x] != column[y] * row[x]) {
+                    return null;
+                }
+            }
+        }
+        return new Kernel[]{
+                new Kernel(name + " (rows)", width, 1, row),
+                new Kernel(name + " (columns)", 1, height, column)};
+    }
+
+    /**
+     * @param weights Weights
+     * @param from    Index of the first weight checked
+     * @param length  Number of weights checked
+     * @return Whether they are all zero
+     */
+    private static boolean isZero(int[] weights, int from, int length) {
+        for (int i = from; i < from + length; i++) {
+            if (weights[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Greatest common divisor of a and b, where gcd(0, b) is b
+     */
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Makes a square box blur, every weight 1
+     *
+     * @param name Name shown to the user
+     * @param size Width and height, odd
+     * @return Box blur kernel
+     */
+    public static Kernel box(String name, int size) {
+        int[] weights = new int[size * size];
+        Arrays.fill(weights, 1);
+        return new Kernel(name, size, size, weights);
+    }
+
+    /**
+     * Makes a square gaussian blur, as the product of two sampled 1-D gaussians so it stays rank 1
+     *
+     * @param name  Name shown to the user
+     * @param size  Width and height, odd
+     * @param sigma Standard deviation, in pixels
+     * @return Gaussian blur kernel
+     */
+    public static Kernel gaussian(String name, int size, double sigma) {
+
+        // 1-D weights out of 64 at the centre, so the 2-D sums stay well inside an int
+        int[] line = new int[size];
+        for (int i = 0; i < size; i++) {
+            double distance = i - size / 2;
+            line[i] = Math.max(1, (int) Math.round(64 * Math.exp(-distance * distance / (2 * sigma * sigma))));
+        }
+
+        int[] weights = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                weights[y * size + x] = line[y] * line[x];
+            }
+        }
+        return new Kernel(name, size, size, weights);
+    }
+
+    /**
+     * Makes a square disc blur, weight 1 inside the circle touching its edges and 0 outside
+     *
+     * @param name Name shown to the user
+     * @param size Width and height, odd
+     * @return Disc blur kernel
+     */
+    public static Kernel disc(String name, int size) {
+        int radius = size / 2;
+        int[] weights = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int dx = x - radius, dy = y - radius;
+                weights[y * size + x] = dx * dx + dy * dy <= radius * radius ? 1 : 0;
+            }
+        }
+        return new Kernel(name, size, size, weights);
+    }
+
+    /**
+     * Adds a kernel to the registry, replacing any with the same name
+     *
+     * @param kernel Kernel to register
+     * @return The kernel
+     */
+    public static Kernel register(Kernel kernel) {
+        synchronized (registry) {
+            registry.put(key(kernel.name), kernel);
+        }
+        return kernel;
+    }
+
+    /**
+     * Looks up a registered kernel, ignoring case, spaces, and punctuation, so "sobel-x" finds "Sobel X"
+     *
+     * @param name Name of the kernel
+     * @return The kernel
+     * @throws IllegalArgumentException If no kernel has the name
+     */
+    public static Kernel named(String name) {
+        Kernel kernel;
+        synchronized (registry) {
+            kernel = registry.get(key(name));
+        }
+        if (kernel == null) {
+            throw new IllegalArgumentException("Unknown kernel: " + name);
+        }
+        return kernel;
+    }
+
+    /**
+     * @return Every registered kernel, in the order they were registered
+     */
+    public static List<Kernel> registered() {
+        synchronized (registry) {
+            return List.copyOf(registry.values());
+        }
+    }
+
+    /**
+     * @param name Name of a kernel
+     * @return Registry key of the name
+     */
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+    }
+
+    /**
+     * @return Name shown to the user
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of columns of weights
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Number of rows of weights
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x Column of the weight
+     * @param y Row of the weight
+     * @return Weight
+     */
+    public int getWeight(int x, int y) {
+        return weights[y * width + x];
+    }
+
+    /**
+     * @return Whether the kernel is split into a row and a column of weights
+     */
+    public boolean isSeparable() {
+        return rowFactor != null;
+    }
+
+    /**
+     * @return Number of non-zero weights
+     */
+    public int getTaps() {
+        int taps = 0;
+        for (int weight : weights) {
+            taps += weight == 0 ? 0 : 1;
+        }
+        return taps;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Kernel kernel && kernel.width == width && kernel.height == height
+                && Arrays.equals(kernel.weights, weights);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * width + height) + Arrays.hashCode(weights);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
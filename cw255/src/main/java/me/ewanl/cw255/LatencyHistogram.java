@@ -0,0 +1,68 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+
+/**
+ * Rolling window of an operation's most recent durations, from which percentiles are read
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of durations kept
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * Most recent durations in nanoseconds, oldest overwritten first
+     */
+    private final long[] samples = new long[WINDOW];
+
+    /**
+     * Number of durations ever recorded
+     */
+    private long count;
+
+    /**
+     * Records a duration
+     *
+     * @param nanos Duration in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[(int) (count++ % WINDOW)] = nanos;
+    }
+
+    /**
+     * @param percentile Percentile wanted, 0-100
+     * @return Duration in nanoseconds at that percentile of the window, or 0 if nothing is recorded
+     */
+    public synchronized long percentile(double percentile) {
+        int size = (int) Math.min(count, WINDOW);
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    /**
+     * @return Most recent duration in nanoseconds, or 0 if nothing is recorded
+     */
+    public synchronized long getLast() {
+        return count == 0 ? 0 : samples[(int) ((count - 1) % WINDOW)];
+    }
+
+    /**
+     * @return Number of durations ever recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("last %6.1fms  p50 %6.1fms  p95 %6.1fms  p99 %6.1fms  (n=%d)",
+                getLast() / 1e6, percentile(50) / 1e6, percentile(95) / 1e6, percentile(99) / 1e6, getCount());
+    }
+}
@@ -0,0 +1,148 @@
+package me.ewanl.cw255;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Lazily built pyramid of box-filtered, half-resolution copies of a raster.
+ *
+ * Level 0 is the raster itself, and each level after is half the size of the one
+ * before (rounding down), every pixel the rounded average of a 2x2 block. Downscales
+ * start from the smallest level still at least as large as their output, so they
+ * only resample at most 2:1, read a number of pixels proportional to the output,
+ * and average every source pixel rather than sampling a few of them.
+ *
+ * Levels are kept per source raster for as long as it is reachable.
+ */
+public final class MipmapPyramid {
+
+    /**
+     * Levels 1 and up of every source still in use; level 0 is the key itself,
+     * so isn't held here, or the key could never be collected
+     */
+    private static final Map<Raster, List<Raster>> pyramids = new WeakHashMap<>();
+
+    private MipmapPyramid() {
+    }
+
+    /**
+     * Gets the smallest level of a raster's pyramid that is still at least a given size,
+     * building it (and any levels above it) if it isn't cached
+     *
+     * @param source Raster at level 0
+     * @param width  Width wanted
+     * @param height Height wanted
+     * @return The level, which is the source itself if it's no more than twice the size
+     */
+    public static Raster levelFor(Raster source, int width, int height) {
+        int level = levelIndex(source.width, source.height, width, height);
+        if (level == 0) {
+            return source;
+        }
+
+        List<Raster> levels;
+        synchronized (pyramids) {
+            levels = pyramids.computeIfAbsent(source, s -> new ArrayList<>());
+        }
+
+        // Builds any missing levels down to the one wanted, keeping each only once it's finished
+        synchronized (levels) {
+            while (levels.size() < level) {
+                Raster above = levels.isEmpty() ? source : levels.get(levels.size() - 1);
+                levels.add(Instrumentation.measure("mipmap", above, false, () -> halve(above)));
+            }
+            return levels.get(level - 1);
+        }
+    }
+
+    /**
+     * Builds a raster's pyramid down to a given level ahead of time, loading each level
+     * from a disk cache if it's there and storing it there if not
+     *
+     * @param source Raster at level 0
+     * @param name   Text identifying the source in the disk cache, e.g. its pipeline's name
+     * @param disk   Cache the levels are kept in
+     * @param level  Index of the last level built
+     */
+    public static void preload(Raster source, String name, DiskCache disk, int level) {
+        List<Raster> levels;
+        synchronized (pyramids) {
+            levels = pyramids.computeIfAbsent(source, s -> new ArrayList<>());
+        }
+
+        synchronized (levels) {
+            while (levels.size() < level) {
+                Raster above = levels.isEmpty() ? source : levels.get(levels.size() - 1);
+                String levelName = name + ",mipmap=" + (levels.size() + 1);
+                Raster half = disk.get(levelName);
+                if (half == null) {
+                    half = Instrumentation.measure("mipmap", above, false, () -> halve(above));
+                    disk.put(levelName, half);
+                }
+                levels.add(half);
+            }
+        }
+    }
+
+    /**
+     * Works out which level of a pyramid a size starts from
+     *
+     * @param sourceWidth  Width of level 0
+     * @param sourceHeight Height of level 0
+     * @param width        Width wanted
+     * @param height       Height wanted
+     * @return Index of the smallest level still at least width x height
+     */
+    static int levelIndex(int sourceWidth, int sourceHeight, int width, int height) {
+        int level = 0;
+        while ((sourceWidth >> (level + 1)) >= Math.max(1, width) && (sourceHeight >> (level + 1)) >= Math.max(1, height)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Box-filters a raster down to half its size
+     *
+     * @param source Raster to halve
+     * @return Raster half the width and height, rounding down
+     */
+    static Raster halve(Raster source) {
+        int width = source.width / 2;
+        Raster half = new Raster(width, source.height / 2);
+
+        TileScheduler.getDefault().forEachBand(width, half.height, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int top = 2 * y * source.width;
+                halveRow(source.pixels, top, source.pixels, top + source.width, half.pixels, y * width, width);
+            }
+        });
+        return half;
+    }
+
+    /**
+     * Averages 2x2 blocks from a pair of rows into one row of half the width
+     *
+     * @param top       Pixels holding the upper row
+     * @param topOffset Index of the upper row's first pixel
+     * @param bottom    Pixels holding the lower row
+     * @param botOffset Index of the lower row's first pixel
+     * @param dst       Pixels written to
+     * @param dstOffset Index of the first pixel written
+     * @param width     Number of pixels written
+     */
+    static void halveRow(int[] top, int topOffset, int[] bottom, int botOffset, int[] dst, int dstOffset, int width) {
+        for (int x = 0; x < width; x++) {
+            int a = top[topOffset + 2 * x], b = top[topOffset + 2 * x + 1];
+            int c = bottom[botOffset + 2 * x], d = bottom[botOffset + 2 * x + 1];
+
+            // Sums alpha/green and red/blue two channels at a time, each with room for 4 x 255
+            int ag = ((a >>> 8) & 0x00FF00FF) + ((b >>> 8) & 0x00FF00FF)
+                    + ((c >>> 8) & 0x00FF00FF) + ((d >>> 8) & 0x00FF00FF) + 0x00020002;
+            int rb = (a & 0x00FF00FF) + (b & 0x00FF00FF) + (c & 0x00FF00FF) + (d & 0x00FF00FF) + 0x00020002;
+            dst[dstOffset + x] = ((ag << 6) & 0xFF00FF00) | ((rb >>> 2) & 0x00FF00FF);
+        }
+    }
+}
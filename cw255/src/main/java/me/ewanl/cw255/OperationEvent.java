@@ -0,0 +1,45 @@
+package me.ewanl.cw255;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one image operation, recorded by Instrumentation.
+ * Enable with -XX:StartFlightRecording, or in JDK Mission Control.
+ */
+@Name("me.ewanl.cw255.Operation")
+@Label("Image Operation")
+@Category("Photoshop")
+@Description("One gamma, resize, laplacian, or display operation")
+@StackTrace(false)
+final class OperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Input Width")
+    int inputWidth;
+
+    @Label("Input Height")
+    int inputHeight;
+
+    @Label("Output Width")
+    int outputWidth;
+
+    @Label("Output Height")
+    int outputHeight;
+
+    @Label("Gamma Fused")
+    @Description("Whether gamma correction was applied as the output was written")
+    boolean gammaFused;
+
+    @Label("Bytes Allocated")
+    @Description("Bytes allocated by the calling thread, including the output but not pool workers' scratch buffers")
+    @DataAmount
+    long bytesAllocated;
+}
@@ -4,28 +4,14 @@ import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
 import java.io.IOException;
+import java.util.Locale;
 import java.util.Objects;
 
 public class Photoshop extends Application {
 
-    /**
-     * Lookup-table for gamma values
-     */
-    private static double[] gammaLUT = new double[256];
-
-    private static final int[][] laplacianMatrix =
-            {{-4, -1, 0, -1, -4},
-                    {-1, 2, 3, 2, -1},
-                    {0, 3, 4, 3, 0},
-                    {-1, 2, 3, 2, -1},
-                    {-4, -1, 0, -1, -4}};
-
     /**
      * Main method to start application
      *
@@ -54,54 +40,61 @@ public class Photoshop extends Application {
     }
 
     /**
-     * Sets the gamma lookup-table whenever gamma is adjusted
+     * Corrects the gamma in the image when requested
      *
-     * @param gamma Gamma value
+     * @param originalImage Image to adjust gamma of
+     * @param gamma         Gamma value
+     * @return Gamma-corrected image
      */
-    public static void setGammaLUT(double gamma) {
-        for (int i = 0; i < 256; i++) {
-            gammaLUT[i] = Math.pow((double) i / 255.0, 1.0 / gamma);
-        }
+    public static Image gammaCorrect(Image originalImage, double gamma) {
+        return gammaCorrect(Raster.fromImage(originalImage), GammaLut.forGamma(gamma)).toImage();
     }
 
     /**
-     * Corrects the gamma in the image when requested
+     * Corrects the gamma in the raster when requested
      *
-     * @param originalImage Image to adjust gamma of
-     * @return Gamma-corrected image
+     * @param original Raster to adjust gamma of
+     * @param lut      Lookup-table for the gamma value
+     * @return Gamma-corrected raster
      */
-    public static Image gammaCorrect(Image originalImage) {
-
-        // New width & height of image
-        int newWidth = (int) originalImage.getWidth();
-        int newHeight = (int) originalImage.getHeight();
-
-        // Create a new WritableImage
-        WritableImage gammaCorrectedImage = new WritableImage(newWidth, newHeight);
-        PixelWriter writeableImage = gammaCorrectedImage.getPixelWriter();
-
-        // Colour of pixel being changed
-        Color colour;
-
-        // Loops through all columns and rows of pixels
-        for (int j = 0; j < newHeight; j++)
-            for (int i = 0; i < newWidth; i++) {
+    public static Raster gammaCorrect(Raster original, GammaLut lut) {
+        return gammaCorrect(original, lut, RasterPool.getDefault().acquireRaster(original.width, original.height));
+    }
 
-                // Gets current colour of pixel
-                colour = originalImage.getPixelReader().getColor(i, j);
+    /**
+     * Corrects the gamma in the raster, writing into a raster that already exists rather than a new one
+     *
+     * @param original    Raster to adjust gamma of
+     * @param lut         Lookup-table for the gamma value
+     * @param destination Raster the same size to write to, which may be the original
+     * @return The destination
+     */
+    public static Raster gammaCorrect(Raster original, GammaLut lut, Raster destination) {
+        if (destination.width != original.width || destination.height != original.height) {
+            throw new IllegalArgumentException("Destination is " + destination.width + "x" + destination.height
+                    + ", not " + original.width + "x" + original.height);
+        }
+        return Instrumentation.measure("gamma", original, false, () -> gammaBands(original, lut, destination));
+    }
 
-                // Sets the new gamma-adjusted red, green, and blue values of pixel
-                double newRed = gammaLUT[(int) (colour.getRed() * 255.0)];
-                double newGreen = gammaLUT[(int) (colour.getGreen() * 255.0)];
-                double newBlue = gammaLUT[(int) (colour.getBlue() * 255.0)];
+    /**
+     * Looks up the gamma-corrected value of every pixel, a band of rows at a time
+     *
+     * @param original       Raster to adjust gamma of
+     * @param lut            Lookup-table for the gamma value
+     * @param gammaCorrected Raster the same size to write to
+     * @return Gamma-corrected raster
+     */
+    private static Raster gammaBands(Raster original, GammaLut lut, Raster gammaCorrected) {
+        int width = original.width;
 
-                // Sets the new colour, and writes it to the new image
-                colour = Color.color(newRed, newGreen, newBlue);
-                writeableImage.setColor(i, j, colour);
-            }
+        // Looks up the new red, green, and blue values of every pixel, a band of rows at a time
+        TileScheduler.getDefault().forEachBand(width, original.height, (startRow, endRow) ->
+                lut.apply(original.pixels, startRow * width, gammaCorrected.pixels, startRow * width,
+                        (endRow - startRow) * width));
 
-        // Returns full gamma-adjusted image
-        return gammaCorrectedImage;
+        // Returns full gamma-adjusted raster
+        return gammaCorrected;
     }
 
     /**
@@ -113,245 +106,186 @@ public class Photoshop extends Application {
      * @return Resized image
      */
     public static Image resizeImage(Image imageToChange, double resizeScale, boolean nn) {
+        return resizeImage(Raster.fromImage(imageToChange), resizeScale, nn).toImage();
+    }
 
-        int width = (int) imageToChange.getWidth();
-        int height = (int) imageToChange.getHeight();
-
-        // New width & height of resized image
-        int newWidth = (int) (imageToChange.getWidth() * resizeScale);
-        int newHeight = (int) (imageToChange.getHeight() * resizeScale);
-
-        // Create a new WritableImage
-        WritableImage resizedImage = new WritableImage(newWidth, newHeight);
-        PixelWriter writeableImage = resizedImage.getPixelWriter();
+    /**
+     * Resizes the raster to a value requested
+     *
+     * @param rasterToChange Raster to be size-adjusted
+     * @param resizeScale    Scale of resizing
+     * @param nn             Whether nearest-neighbour interpolation is being used
+     * @return Resized raster
+     */
+    public static Raster resizeImage(Raster rasterToChange, double resizeScale, boolean nn) {
+        return resizeImage(rasterToChange, resizeScale,
+                nn ? Interpolation.NEAREST_NEIGHBOUR : Interpolation.BILINEAR, null);
+    }
 
-        // Colour of pixel being adjusted
-        Color colour;
+    /**
+     * Resizes the raster to a value requested, gamma-correcting each pixel as it is written
+     *
+     * @param rasterToChange Raster to be size-adjusted
+     * @param resizeScale    Scale of resizing
+     * @param interpolation  Interpolation style to resize with
+     * @param lut            Lookup-table applied to the output, or null for none
+     * @return Resized raster
+     */
+    public static Raster resizeImage(Raster rasterToChange, double resizeScale, Interpolation interpolation, GammaLut lut) {
 
-        if (nn) {
+        int width = rasterToChange.width;
+        int height = rasterToChange.height;
 
-            // NEAREST-NEIGHBOUR:
+        // New width & height of resized image
+        int newWidth = (int) (width * resizeScale);
+        int newHeight = (int) (height * resizeScale);
 
-            if (resizeScale > 0.5) {
-                // Loops through all rows & columns of image of new dimensions
-                for (int j = 0; j < newHeight; j++) {
-                    for (int i = 0; i < newWidth; i++) {
+        return resizeRegion(rasterToChange, resizeScale, interpolation, lut, 0, 0, newWidth, newHeight);
+    }
 
-                        // Finds pixel within original image, that will be used in the new image
-                        double x = imageToChange.getWidth() * (double) i / (double) newWidth;
-                        double y = imageToChange.getHeight() * (double) j / (double) newHeight;
+    /**
+     * Resizes the raster to a value requested, but only works out one rectangle of the result,
+     * e.g. the part of an enlarged image that is on screen. Pixels are identical to the same
+     * rectangle of the whole resized raster.
+     *
+     * @param rasterToChange Raster to be size-adjusted
+     * @param resizeScale    Scale of resizing
+     * @param interpolation  Interpolation style to resize with
+     * @param lut            Lookup-table applied to the output, or null for none
+     * @param x              Left of the rectangle, in the resized raster
+     * @param y              Top of the rectangle, in the resized raster
+     * @param regionWidth    Width of the rectangle
+     * @param regionHeight   Height of the rectangle
+     * @return Resized rectangle
+     */
+    public static Raster resizeRegion(Raster rasterToChange, double resizeScale, Interpolation interpolation, GammaLut lut,
+                                      int x, int y, int regionWidth, int regionHeight) {
 
-                        // Adjusts them to be integers, to actually be playable onto new image
-                        int ix = (int) x;
-                        int iy = (int) y;
+        // New width & height of the whole resized image
+        int newWidth = (int) (rasterToChange.width * resizeScale);
+        int newHeight = (int) (rasterToChange.height * resizeScale);
 
-                        // Sets new colour, and writes to new image
-                        colour = imageToChange.getPixelReader().getColor(ix, iy);
-                        writeableImage.setColor(i, j, colour);
-                    }
-                }
-            }
+        // Downscales start from the smallest mipmap level still at least the new size,
+        // so neither style resamples by more than 2:1
+        Raster source = MipmapPyramid.levelFor(rasterToChange, newWidth, newHeight);
 
-        } else {
+        if (interpolation == Interpolation.BILINEAR) {
 
             // BILINEAR:
 
+            // Interpolates from per-column and per-row fixed-point tables, reused between frames
+            return Instrumentation.measure("resize-bilinear", source, lut != null,
+                    () -> BilinearResampler.resize(source, newWidth, newHeight, lut, x, y, regionWidth, regionHeight));
+        }
 
-            // Calculate scaling factors for X and Y dimensions
-            double xFactor = (double) width / (double) newWidth;
-            double yFactor = (double) height / (double) newHeight;
-
-            // Vars for interpolation calculations
-            double  ox, oy, dx1, dy1, dx2, dy2;
-            int     ox1, oy1, ox2, oy2;
-
-            // Maximum valid indices for original image
-            int yMax = height - 1;
-            int xMax = width - 1;
-
-            // Temp variables for pixel access
-            int tempPointer1, tempPointer2;
-            int pointer1, pointer2, pointer3, pointer4;
-
-            // Loop through each image in new image
-            for (int i = 0; i < newHeight; i++){
-
-                // Calculate Y co-ord in original image
-                oy  = (double) i * yFactor;
-                oy1 = (int) oy;
-                oy2 = ( oy1 == yMax ) ? oy1 : oy1 + 1; // Adjust for boundary condition
-                dy1 = oy - (double) oy1;
-                dy2 = 1.0 - dy1;
-
-                // Set temporary pointers for Y-axis interpolation
-                tempPointer1 = oy1;
-                tempPointer2 = oy2;
-
-                // Loop through each column in new image
-                for (int j = 0; j < newWidth; j++){
-
-                    // Calculate X co-ord in original image
-                    ox  = (double) j * xFactor;
-                    ox1 = (int) ox;
-                    ox2 = ( ox1 == xMax ) ? ox1 : ox1 + 1; // Adjust for boundary condition
-                    dx1 = ox - (double) ox1;
-                    dx2 = 1.0 - dx1;
-
-                    // Bilinear interpolation for red channel
-                    pointer1 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer1).getRed() * 255);
-                    pointer2 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer1).getRed() * 255);
-                    pointer3 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer2).getRed() * 255);
-                    pointer4 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer2).getRed() * 255);
-
-                    int r = (int) (
-                            dy2 * (dx2 * pointer1 + dx1 * pointer2) +
-                                    dy1 * (dx2 * pointer3 + dx1 * pointer4) + 0.5 // Rounding to the nearest integer
-                    );
-
-                    // Bilinear interpolation for green channel
-                    pointer1 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer1).getGreen() * 255);
-                    pointer2 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer1).getGreen() * 255);
-                    pointer3 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer2).getGreen() * 255);
-                    pointer4 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer2).getGreen() * 255);
-
-                    int g = (int) (
-                            dy2 * (dx2 * pointer1 + dx1 * pointer2) +
-                                    dy1 * (dx2 * pointer3 + dx1 * pointer4) + 0.5 // Rounding to the nearest integer
-                    );
-
-
-                    // Bilinear interpolation for blue channel
-                    pointer1 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer1).getBlue() * 255);
-                    pointer2 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer1).getBlue() * 255);
-                    pointer3 = (int) (imageToChange.getPixelReader().getColor(ox1, tempPointer2).getBlue() * 255);
-                    pointer4 = (int) (imageToChange.getPixelReader().getColor(ox2, tempPointer2).getBlue() * 255);
-
-                    int b = (int) (
-                            dy2 * (dx2 * pointer1 + dx1 * pointer2) +
-                                    dy1 * (dx2 * pointer3 + dx1 * pointer4) + 0.5 // Rounding to the nearest integer
-                    );
-
-                    // Set calculated rgb values to new image
-                    writeableImage.setColor(j, i, Color.rgb(r, g, b));
-                }
-            }
+        if (interpolation == Interpolation.BICUBIC || interpolation == Interpolation.LANCZOS3) {
+
+            // BICUBIC / LANCZOS-3:
 
+            // Filters horizontally then vertically, from weight tables reused between frames
+            return Instrumentation.measure("resize-" + interpolation.name().toLowerCase(Locale.ROOT), source, lut != null,
+                    () -> SeparableResampler.resize(source, newWidth, newHeight, interpolation, lut,
+                            x, y, regionWidth, regionHeight));
         }
 
-        // Returns full resized image
-        return resizedImage;
+        // NEAREST-NEIGHBOUR:
+
+        return Instrumentation.measure("resize-nn", source, lut != null,
+                () -> resizeNearest(source, newWidth, newHeight, lut, x, y, regionWidth, regionHeight));
     }
 
     /**
-     * Applies laplacian cross correlation filter to the images
-     * @param imageToChange Image to apply filter to
-     * @return Image with filter applied
+     * Resizes the raster by copying the nearest pixel of the original to each new pixel
+     *
+     * @param rasterToChange Raster to be size-adjusted
+     * @param newWidth       Width of the whole resized raster
+     * @param newHeight      Height of the whole resized raster
+     * @param lut            Lookup-table applied to the output, or null for none
+     * @param x              Left of the rectangle worked out
+     * @param y              Top of the rectangle worked out
+     * @param regionWidth    Width of the rectangle
+     * @param regionHeight   Height of the rectangle
+     * @return Resized rectangle
      */
-    public static Image applyLaplace(Image imageToChange) {
-        // New width and height of the image
-        int newWidth = (int) imageToChange.getWidth();
-        int newHeight = (int) imageToChange.getHeight();
-
-        // Max red, green, and blue values - used to apply the filter
-        double maxRed = Integer.MIN_VALUE;
-        double maxGreen = Integer.MIN_VALUE;
-        double maxBlue = Integer.MIN_VALUE;
-
-        double minRed = Integer.MAX_VALUE;
-        double minGreen = Integer.MAX_VALUE;
-        double minBlue = Integer.MAX_VALUE;
-
-        // Array of all the raw values of the filter, before being normalised
-        FauxColor[][] bigColours = new FauxColor[newWidth - 4][newWidth - 4];
-
-        // Image being returned and to wrote to later
-        WritableImage filteredImage = new WritableImage(newWidth - 4, newHeight - 4);
-        PixelWriter writeableImage = filteredImage.getPixelWriter();
-
-        // Loops through every pixel in the original image
-        for (int j = 2; j < newHeight - 2; j++) {
-            for (int i = 2; i < newWidth - 2; i++) {
-
-                // Gets the raw red, green, and blue values of the pixel (and surrounding)
-                // after applying filter stored in a [r, g, b] within a double
-                double[] colorVals = getTotalColours(imageToChange, i, j);
-
-                // Stores these values into a variable that holds all 3
-                FauxColor pixelVals = new FauxColor(
-                        (int) colorVals[0],
-                        (int) colorVals[1],
-                        (int) colorVals[2]
-                );
-
-                // Adjust the max/min values as/if needed
-                if (pixelVals.getR() < minRed) {
-                    minRed = pixelVals.getR();
-                }
+    private static Raster resizeNearest(Raster rasterToChange, int newWidth, int newHeight, GammaLut lut,
+                                        int x, int y, int regionWidth, int regionHeight) {
 
-                if (pixelVals.getR() > maxRed) {
-                    maxRed = pixelVals.getR();
-                }
+        int width = rasterToChange.width;
+        int height = rasterToChange.height;
+        int[] src = rasterToChange.pixels;
 
-                if (pixelVals.getG() < minGreen) {
-                    minGreen = pixelVals.getG();
-                }
+        // Takes a raster from the pool, as every pixel is written
+        Raster resized = RasterPool.getDefault().acquireRaster(regionWidth, regionHeight);
+        int[] dst = resized.pixels;
 
-                if (pixelVals.getG() > maxGreen) {
-                    maxGreen = pixelVals.getG();
-                }
+        // Finds the column within the original image used by each new column, once for all rows
+        int[] columns = new int[regionWidth];
+        for (int i = 0; i < regionWidth; i++) {
+            columns[i] = (int) (width * (double) (x + i) / (double) newWidth);
+        }
 
-                if (pixelVals.getB() < minBlue) {
-                    minBlue = pixelVals.getB();
-                }
+        // Loops through all rows & columns of image of new dimensions, a band of rows at a time
+        TileScheduler.getDefault().forEachBand(regionWidth, regionHeight, (startRow, endRow) -> {
+            for (int j = startRow; j < endRow; j++) {
 
-                if (pixelVals.getB() > maxBlue) {
-                    maxBlue = pixelVals.getB();
-                }
+                // Finds row within original image, that will be used in the new image
+                int rowOffset = (int) (height * (double) (y + j) / (double) newHeight) * width;
+                int outOffset = j * regionWidth;
 
-                //
-                bigColours[i - 2][j - 2] = pixelVals;
+                // Copies the nearest pixel to the new image
+                for (int i = 0; i < regionWidth; i++) {
+                    int pixel = src[rowOffset + columns[i]];
+                    dst[outOffset + i] = lut == null ? pixel : lut.apply(pixel);
+                }
             }
-        }
+        });
 
-        // Loops through the pixels of the new image again, but to write to
-        // instead of read
-        for (int i = 0; i < newWidth - 4; i++) {
-            for (int j = 0; j < newHeight - 4; j++) {
+        // Returns full resized raster
+        return resized;
+    }
+
+    /**
+     * Applies laplacian cross correlation filter to the images
+     * @param imageToChange Image to apply filter to
+     * @return Image with filter applied
+     */
+    public static Image applyLaplace(Image imageToChange) {
+        return applyLaplace(Raster.fromImage(imageToChange)).toImage();
+    }
 
-                // Calculates the normals of the reds, greens, and blues
-                int redVal = (int) ((bigColours[i][j].getR() - minRed) * (255 / (maxRed - minRed)));
-                int greenVal = (int) ((bigColours[i][j].getG() - minGreen) * (255 / (maxGreen - minGreen)));
-                int blueVal = (int) ((bigColours[i][j].getB() - minBlue) * (255 / (maxBlue - minBlue)));
+    /**
+     * Applies laplacian cross correlation filter to the raster
+     * @param rasterToChange Raster to apply filter to
+     * @return Raster with filter applied
+     */
+    public static Raster applyLaplace(Raster rasterToChange) {
+        return applyLaplace(rasterToChange, null);
+    }
 
-                // Writes the new values to the image
-                writeableImage.setColor(i, j, Color.rgb(redVal, greenVal, blueVal));
-            }
-        }
-        return filteredImage;
+    /**
+     * Applies laplacian cross correlation filter to the raster, gamma-correcting each pixel as it is written
+     * @param rasterToChange Raster to apply filter to
+     * @param lut Lookup-table applied to the output, or null for none
+     * @return Raster with filter applied
+     */
+    public static Raster applyLaplace(Raster rasterToChange, GammaLut lut) {
+        return applyKernel(rasterToChange, Kernel.LAPLACIAN, lut);
     }
 
     /**
-     * Gets the raw values of applying the laplacian filter
-     * @param image Image that's being read from
-     * @param x x value of centre pixel
-     * @param y y value of centre pixel
-     * @return List of raw rgb filtered values
+     * Applies a cross correlation filter to the raster, with whichever strategy suits the kernel,
+     * gamma-correcting each pixel as it is written
+     * @param rasterToChange Raster to apply filter to
+     * @param kernel Kernel of the filter
+     * @param lut Lookup-table applied to the output, or null for none
+     * @return Raster with filter applied, (kernel width - 1) narrower and (kernel height - 1) shorter
      */
-    private static double[] getTotalColours(Image image, int x, int y) {
-        //
-        double colorVals[] = new double[3];
-
-        // Loops through all surrounding (and including) target pixel
-        for (int i = -2; i <= 2; i++) {
-            for (int j = -2; j <= 2; j++) {
-
-                // Applies Laplacian filter to the colour, and adds to the value
-                colorVals[0] += (image.getPixelReader().getColor(i + x, j + y).getRed() * laplacianMatrix[i + 2][j + 2]);
-                colorVals[1] += (image.getPixelReader().getColor(i + x, j + y).getGreen() * laplacianMatrix[i + 2][j + 2]);
-                colorVals[2] += (image.getPixelReader().getColor(i + x, j + y).getBlue() * laplacianMatrix[i + 2][j + 2]);
-            }
-        }
-        return colorVals;
+    public static Raster applyKernel(Raster rasterToChange, Kernel kernel, GammaLut lut) {
+        ConvolutionEngine.Strategy strategy = ConvolutionEngine.strategyFor(kernel);
+        String operation = kernel.equals(Kernel.LAPLACIAN) ? "laplace"
+                : "convolve-" + strategy.name().toLowerCase(Locale.ROOT);
+        return Instrumentation.measure(operation, rasterToChange, lut != null,
+                () -> ConvolutionEngine.apply(rasterToChange, kernel, strategy, lut));
     }
 
 }
\ No newline at end of file
@@ -5,13 +5,23 @@
  */
 package me.ewanl.cw255;
 
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
+import javafx.geometry.Bounds;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.util.Duration;
 
 import java.text.DecimalFormat;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PhotoshopController {
 
@@ -25,6 +35,41 @@ public class PhotoshopController {
      */
     private final double INIT_SCALE_VAL = 1;
 
+    /**
+     * How many times smaller the preview sources are than the full ones
+     */
+    private static final int PREVIEW_FACTOR = 4;
+
+    /**
+     * Renders smaller than this many pixels skip the preview and go straight to full quality
+     */
+    private static final int PREVIEW_MIN_PIXELS = 1 << 20;
+
+    /**
+     * How long the controls must be left alone before the preview is refined
+     */
+    private static final Duration REFINE_DELAY = Duration.millis(150);
+
+    /**
+     * Most bytes of rendered stages kept in the cache
+     */
+    private static final long STAGE_CACHE_BYTES = 256L << 20;
+
+    /**
+     * Most bytes of derived images kept on disk between runs
+     */
+    private static final long DISK_CACHE_BYTES = 256L << 20;
+
+    /**
+     * Most bytes of rendered tiles kept in the cache
+     */
+    private static final long TILE_CACHE_BYTES = 64L << 20;
+
+    /**
+     * How far past each edge of the viewport tiles are rendered, so panning finds them ready
+     */
+    private static final int PREFETCH_MARGIN = TiledImage.TILE_SIZE;
+
     /**
      * Label that represents current gamma value
      */
@@ -55,6 +100,16 @@ public class PhotoshopController {
      */
     public RadioButton rdoNearestNeighbour;
 
+    /**
+     * Radio button to toggle if bicubic interpolation
+     */
+    public RadioButton rdoBicubic;
+
+    /**
+     * Radio button to toggle if Lanczos-3 interpolation
+     */
+    public RadioButton rdoLanczos;
+
     /**
      * Toggle group housing the radio buttons
      */
@@ -65,6 +120,11 @@ public class PhotoshopController {
      */
     public CheckBox chkCrossCorrelation;
 
+    /**
+     * Drop-down choosing the kernel of the cross correlation filter
+     */
+    public ComboBox<Kernel> cmbKernel;
+
     /**
      * Button to reset all values
      */
@@ -75,46 +135,145 @@ public class PhotoshopController {
      */
     public ImageView imgView;
 
+    /**
+     * Scroll pane the image is panned around in
+     */
+    public ScrollPane scrView;
+
+    /**
+     * Layer holding the stretched preview under the full-quality tiles
+     */
+    public Pane tileLayer;
+
+    /**
+     * Checkbox to show/hide the timings overlay
+     */
+    public CheckBox chkTimings;
+
+    /**
+     * Overlay on the image showing operation timings and cache hit rates
+     */
+    public Label lblTimings;
+
     /**
      * Original image to be modified
      */
     private Image originalImage;
 
     /**
-     * Original image with laplacian filter applied
+     * Pixels of the original image, or null until it has loaded
+     */
+    private volatile Raster originalRaster;
+
+    /**
+     * Content hash the original image is cached under
+     */
+    private volatile String sourceKey;
+
+    /**
+     * Whether the controls changed before the original image had loaded, so it needs rendering once it has
+     */
+    private boolean renderWhenLoaded;
+
+    /**
+     * Derived images (filtered sources, their downsampled copies and mipmaps) kept between runs
      */
-    private Image laplacianImage;
+    private final DiskCache diskCache = new DiskCache(DiskCache.defaultDirectory(), DISK_CACHE_BYTES);
+
+    /**
+     * Output of every stage of recent renders, so only the stages that changed are redone
+     */
+    private final StageCache stageCache = new StageCache(STAGE_CACHE_BYTES);
+
+    /**
+     * Rendered tiles of recent full-quality images
+     */
+    private final StageCache tileCache = new StageCache(TILE_CACHE_BYTES);
+
+    /**
+     * Pair of frames the preview is rendered into and shown from, without copying
+     */
+    private final FrameBuffer previewFrames = new FrameBuffer();
+
+    /**
+     * Full-quality image being shown, or null while only the preview is
+     */
+    private TiledImage tiledImage;
+
+    /**
+     * Tiles on the tile layer, by column and row
+     */
+    private final Map<TileIndex, ImageView> tileViews = new HashMap<>();
+
+    /**
+     * Pair of frames each tile is rendered into and shown from, by column and row, kept across
+     * images so re-rendering a tile only uploads the pixels that changed
+     */
+    private final Map<TileIndex, FrameBuffer> tileFrames = new ConcurrentHashMap<>();
+
+    /**
+     * Key of the image the tiles on the tile layer are from
+     */
+    private Object tileViewsKey;
+
+    /**
+     * Key of the full-quality image the preview being shown is for
+     */
+    private Object previewKey;
+
+    /**
+     * Column and row of a tile
+     */
+    private record TileIndex(int column, int row) {
+    }
+
+    /**
+     * Tile rendered in the background, ready to be shown
+     * @param index Column and row of the tile
+     * @param frames Frames of the tile's slot
+     * @param frame Back frame the tile was rendered into
+     */
+    private record RenderedTile(TileIndex index, FrameBuffer frames, Raster frame) {
+    }
 
     /**
      * Current scale of the image
      */
     private double currentScale = INIT_SCALE_VAL;
 
+    /**
+     * Current gamma of the image
+     */
+    private double currentGamma = INIT_GAMMA_VAL;
+
+    /**
+     * Runs renders off the JavaFX Application Thread, keeping only the newest
+     */
+    private final RenderScheduler renderScheduler = new RenderScheduler();
+
+    /**
+     * Starts the full-quality render once the controls have been idle for REFINE_DELAY
+     */
+    private final PauseTransition refineTimer = new PauseTransition(REFINE_DELAY);
+
     /**
      * Initialises listeners for all objects in the scene
      */
     public void initialize(){
 
-        // Loads image, stores into originalImage
-        try {
-            originalImage = new Image(Objects.requireNonNull(getClass().getResourceAsStream("raytrace.jpg")));
-        } catch (NullPointerException e){
-            System.out.println("Image not found :(");
-        }
+        // Uses the image the view is already loading in the background, so the window doesn't wait for it
+        originalImage = imgView.getImage();
 
         // Sets the decimal format for the slider labels, rounding to 3dp
         DecimalFormat df = new DecimalFormat("0.000");
 
-        // Sets the gamma look-up table to the initial gamma value
-        Photoshop.setGammaLUT(INIT_GAMMA_VAL);
-
         // Adds the events to the listener of the gamma slider
         sldGamma.valueProperty().addListener((observableValue, oldVal, newVal) -> {
 
             // Update appropriate variables to new value
             double gammaVal = newVal.doubleValue();
+            currentGamma = gammaVal;
             lblGammaValue.setText(df.format(gammaVal));
-            Photoshop.setGammaLUT(gammaVal);
 
             // Updates image to incorporate new gamma value
             updateImage(null);
@@ -138,37 +297,369 @@ public class PhotoshopController {
          */
         chkCrossCorrelation.setOnAction(this::updateImage);
 
-        // Sets an image to have the original image with laplacian filter
-        laplacianImage = Photoshop.applyLaplace(originalImage);
+        // Offers every registered kernel, re-rendering when another is picked
+        cmbKernel.getItems().setAll(Kernel.registered());
+        cmbKernel.setValue(Kernel.LAPLACIAN);
+        cmbKernel.valueProperty().addListener((observableValue, oldVal, newVal) -> updateImage(null));
+
+        // Re-renders with the new interpolation style when another radio button is picked
+        interpolation.selectedToggleProperty().addListener((observableValue, oldVal, newVal) -> updateImage(null));
+
+        // Works out everything derived from the image once it has loaded
+        if (originalImage.getProgress() >= 1){
+            startLoading();
+        } else {
+            originalImage.progressProperty().addListener((observableValue, oldVal, newVal) -> {
+                if (newVal.doubleValue() >= 1){
+                    startLoading();
+                }
+            });
+        }
 
         // Adds event to button listener, calls reset method
         btnReset.setOnAction(event -> reset());
+
+        // Shows the timings overlay only while its checkbox is ticked
+        lblTimings.visibleProperty().bind(chkTimings.selectedProperty());
+
+        // Renders any tiles scrolled or resized into view
+        scrView.hvalueProperty().addListener((observableValue, oldVal, newVal) -> renderVisibleTiles());
+        scrView.vvalueProperty().addListener((observableValue, oldVal, newVal) -> renderVisibleTiles());
+        scrView.viewportBoundsProperty().addListener((observableValue, oldVal, newVal) -> renderVisibleTiles());
+    }
+
+    /**
+     * Reads the loaded image's pixels and fills the caches from them on a background thread,
+     * so the window shows the original straight away and stays responsive meanwhile
+     */
+    private void startLoading(){
+        if (originalImage.isError()){
+            System.out.println("Image not found :(");
+            return;
+        }
+
+        // Reports any failure on the JavaFX Application Thread, as nothing else would see it
+        Thread.ofPlatform().daemon().name("photoshop-startup").start(() -> {
+            try {
+                loadSource();
+            } catch (Throwable e) {
+                Platform.runLater(() -> reportLoadFailure(e));
+            }
+        });
     }
 
     /**
-     * Updates image, using the current scale value, current gamma value, scale interpolation style, and laplacian filter
+     * Reads the loaded image's pixels, starts any render waiting for them, then fills the caches
+     */
+    private void loadSource(){
+
+        // Keys everything derived from the image by its content, so a changed image isn't given stale results
+        Raster raster = Raster.fromImage(originalImage);
+        sourceKey = DiskCache.hash(raster);
+        originalRaster = raster;
+        Platform.runLater(() -> {
+            if (renderWhenLoaded){
+                updateImage(null);
+            }
+        });
+
+        // Fills the cache with the original image with laplacian filter, and downsampled
+        // copies of both, so previews only touch a fraction of the pixels. Each is loaded
+        // from disk if an earlier run worked it out, and saved there if not
+        source(null, true).persistedIn(diskCache).build();
+        source(Kernel.LAPLACIAN, true).persistedIn(diskCache).build();
+
+        // Builds the mipmaps full-quality downscales start from, down to the last at least a tile across
+        int levels = MipmapPyramid.levelIndex(raster.getWidth(), raster.getHeight(),
+                TiledImage.TILE_SIZE, TiledImage.TILE_SIZE);
+        for (Kernel kernel : new Kernel[]{null, Kernel.LAPLACIAN}){
+            Pipeline pipeline = source(kernel, false).persistedIn(diskCache);
+            MipmapPyramid.preload(pipeline.build(), pipeline.getName(), diskCache, levels);
+        }
+    }
+
+    /**
+     * Reports that the image's pixels couldn't be read, or the caches couldn't be filled from them.
+     * Must be called on the JavaFX Application Thread.
+     * @param failure What went wrong
+     */
+    private void reportLoadFailure(Throwable failure){
+
+        // Renders still work without the caches, but with no pixels there's nothing to render
+        if (originalRaster == null){
+            renderWhenLoaded = false;
+            System.out.println("Image couldn't be read :(");
+        } else {
+            System.out.println("Caches couldn't be filled, so renders will be slower :(");
+        }
+        failure.printStackTrace();
+    }
+
+    /**
+     * Updates image, using the current scale value, current gamma value, scale interpolation style, and cross correlation filter
      * @param actionEvent Action Event handler
      */
     private void updateImage(ActionEvent actionEvent){
-        if (chkCrossCorrelation.isSelected()){
-            if (sldGamma.getValue() == 1){
-                if (sldScale.getValue() == 1){
-                    imgView.setImage(laplacianImage);
-                }
-                else {
-                    imgView.setImage(Photoshop.resizeImage(laplacianImage, currentScale, rdoNearestNeighbour.isSelected()));
-                }
-            } else {
-                if (sldScale.getValue() == 1){
-                    imgView.setImage(Photoshop.gammaCorrect(laplacianImage));
-                }
-                else {
-                    imgView.setImage(Photoshop.gammaCorrect(Photoshop.resizeImage(laplacianImage, currentScale, rdoNearestNeighbour.isSelected())));
+
+        // Nothing to render from yet; the image is rendered as soon as it has loaded
+        if (originalRaster == null){
+            renderWhenLoaded = true;
+            return;
+        }
+
+        // Reads the controls here, as the render runs on another thread
+        Kernel kernel = chkCrossCorrelation.isSelected() ? cmbKernel.getValue() : null;
+        double scale = currentScale;
+        double gamma = currentGamma;
+        Interpolation interpolation = currentInterpolation();
+
+        // Full-quality image, which is only ever rendered a tile at a time
+        TiledImage full = new TiledImage(source(kernel, false).resize(scale, interpolation).gamma(gamma), tileCache);
+
+        refineTimer.stop();
+        if ((long) full.getWidth() * full.getHeight() < PREVIEW_MIN_PIXELS) {
+            showTiles(full);
+            return;
+        }
+
+        // Shows a quick preview from the downsampled source straight away,
+        // then refines it once the controls have been left alone
+        tiledImage = null;
+        renderPreview(kernel, scale, interpolation, gamma, full);
+        refineTimer.setOnFinished(event -> showTiles(full));
+        refineTimer.playFromStart();
+    }
+
+    /**
+     * Starts a cached pipeline from the image being rendered
+     * @param kernel Kernel of the cross correlation filter, or null for none
+     * @param preview Whether to render from the downsampled copy
+     * @return Pipeline producing the source
+     */
+    private Pipeline source(Kernel kernel, boolean preview){
+        Pipeline pipeline = Pipeline.of(originalRaster, sourceKey).cachedIn(stageCache);
+        if (kernel != null){
+            pipeline.convolve(kernel);
+        }
+        if (preview){
+            pipeline.resize(1.0 / PREVIEW_FACTOR, Interpolation.BILINEAR);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Renders the preview from the downsampled source in the background, and shows it
+     * stretched to the size of the full-quality image, under where its tiles will go
+     * @param kernel Kernel of the cross correlation filter, or null for none
+     * @param scale Scale of resizing
+     * @param interpolation Interpolation style to resize with
+     * @param gamma Gamma value
+     * @param full Full-quality image the preview stands in for
+     */
+    private void renderPreview(Kernel kernel, double scale, Interpolation interpolation, double gamma,
+                               TiledImage full){
+
+        // Resizes and gamma-corrects straight into the back frame, reusing whichever stages are cached
+        // and skipping whichever are left at 1, then shows it if no newer render has been asked for since
+        long submitted = System.nanoTime();
+        renderScheduler.submit(
+                () -> {
+                    Pipeline pipeline = source(kernel, true).resize(scale, interpolation).gamma(gamma);
+                    Raster frame = previewFrames.back(pipeline.getWidth(), pipeline.getHeight());
+                    pipeline.buildInto(frame);
+                    FrameBuffer.premultiply(frame);
+                    return frame;
+                },
+                frame -> {
+
+                    // The tiles showing are from an older image, so would cover the new preview
+                    clearTiles();
+                    sizeImageLayer(full.getWidth(), full.getHeight());
+                    previewKey = full.getKey();
+                    Instrumentation.measure("set-image", frame.getWidth(), frame.getHeight(), () -> {
+                        WritableImage image = previewFrames.show(frame);
+                        imgView.setImage(image);
+                        return image;
+                    });
+
+                    // Time from the controls changing to the image being shown
+                    Instrumentation.histogram("frame-preview").record(System.nanoTime() - submitted);
+                    updateTimings();
+                });
+    }
+
+    /**
+     * Switches to showing a full-quality image, rendering the tiles in view
+     * @param full Image to show
+     */
+    private void showTiles(TiledImage full){
+        tiledImage = full;
+        renderVisibleTiles();
+    }
+
+    /**
+     * Renders, in the background, whichever tiles of the full-quality image are in or near
+     * the viewport but not yet on the tile layer, then shows them and drops any that have
+     * moved out of range
+     */
+    private void renderVisibleTiles(){
+        TiledImage tiled = tiledImage;
+        if (tiled == null){
+            return;
+        }
+
+        // Finds the part of the image in the viewport, widened by the prefetch margin
+        Bounds viewport = scrView.getViewportBounds();
+        double left = Math.max(0, tiled.getWidth() - viewport.getWidth()) * scrView.getHvalue();
+        double top = Math.max(0, tiled.getHeight() - viewport.getHeight()) * scrView.getVvalue();
+        TiledImage.Range range = tiled.tilesCovering(left - PREFETCH_MARGIN, top - PREFETCH_MARGIN,
+                viewport.getWidth() + 2 * PREFETCH_MARGIN, viewport.getHeight() + 2 * PREFETCH_MARGIN);
+
+        // Only tiles not already shown are rendered, unless the image has changed
+        boolean sameImage = tiled.getKey().equals(tileViewsKey);
+        List<TileIndex> missing = new ArrayList<>();
+        for (int row = range.firstRow(); row <= range.lastRow(); row++){
+            for (int column = range.firstColumn(); column <= range.lastColumn(); column++){
+                TileIndex index = new TileIndex(column, row);
+                if (!sameImage || !tileViews.containsKey(index)){
+                    missing.add(index);
                 }
             }
-        } else {
-            imgView.setImage(Photoshop.gammaCorrect(Photoshop.resizeImage(originalImage, currentScale, rdoNearestNeighbour.isSelected())));
         }
+        if (missing.isEmpty()){
+            dropTilesOutside(range);
+            return;
+        }
+
+        // Renders the tiles one by one, so a newer render (e.g. from panning again) stops
+        // this one between tiles; any finished are in the tile cache for the next
+        long submitted = System.nanoTime();
+        renderScheduler.submit(
+                () -> {
+                    List<RenderedTile> rendered = new ArrayList<>();
+                    for (TileIndex index : missing){
+                        Raster tile = tiled.tile(index.column(), index.row());
+                        CancellationToken.current().throwIfCancelled();
+
+                        // Copies the (possibly cached) tile into its slot's back frame, ready to be shown
+                        FrameBuffer frames = tileFrames.computeIfAbsent(index, i -> new FrameBuffer());
+                        Raster frame = frames.back(tile.getWidth(), tile.getHeight());
+                        Instrumentation.measure("to-image", tile.getWidth(), tile.getHeight(), () -> {
+                            System.arraycopy(tile.getPixels(), 0, frame.getPixels(), 0, tile.getWidth() * tile.getHeight());
+                            FrameBuffer.premultiply(frame);
+                            return frame;
+                        });
+                        rendered.add(new RenderedTile(index, frames, frame));
+                    }
+                    return rendered;
+                },
+                rendered -> {
+                    publishTiles(tiled, rendered);
+                    dropTilesOutside(range);
+
+                    // Time from the controls changing (or the view moving) to the tiles being shown
+                    Instrumentation.histogram("frame").record(System.nanoTime() - submitted);
+                    updateTimings();
+                });
+    }
+
+    /**
+     * Puts rendered tiles on the tile layer, first clearing it if they're from another image
+     * @param tiled Image the tiles are from
+     * @param rendered Tiles to show
+     */
+    private void publishTiles(TiledImage tiled, List<RenderedTile> rendered){
+        if (!tiled.getKey().equals(tileViewsKey)){
+            clearTiles();
+            tileViewsKey = tiled.getKey();
+            sizeImageLayer(tiled.getWidth(), tiled.getHeight());
+
+            // No preview was shown for this image, so the one underneath is stale
+            if (!tiled.getKey().equals(previewKey)){
+                imgView.setImage(null);
+            }
+        }
+
+        // Swaps each tile's frame in, reusing its view if it's already on the tile layer
+        for (RenderedTile tile : rendered){
+            ImageView view = tileViews.get(tile.index());
+            if (view == null){
+                view = new ImageView();
+                view.setLayoutX(tile.index().column() * TiledImage.TILE_SIZE);
+                view.setLayoutY(tile.index().row() * TiledImage.TILE_SIZE);
+                tileViews.put(tile.index(), view);
+                tileLayer.getChildren().add(view);
+            }
+            view.setImage(tile.frames().show(tile.frame()));
+        }
+    }
+
+    /**
+     * Removes tiles that are out of range from the tile layer, with their frames, so memory stays flat
+     * however far the view moves
+     * @param range Tiles to keep
+     */
+    private void dropTilesOutside(TiledImage.Range range){
+        tileFrames.keySet().removeIf(index -> !range.contains(index.column(), index.row()));
+        tileViews.entrySet().removeIf(entry -> {
+            if (range.contains(entry.getKey().column(), entry.getKey().row())){
+                return false;
+            }
+            tileLayer.getChildren().remove(entry.getValue());
+            return true;
+        });
+    }
+
+    /**
+     * Removes every tile from the tile layer
+     */
+    private void clearTiles(){
+        tileLayer.getChildren().removeAll(tileViews.values());
+        tileViews.clear();
+        tileViewsKey = null;
+    }
+
+    /**
+     * Sizes the tile layer, and the preview stretched across it, to an image's size
+     * @param width Width of the image
+     * @param height Height of the image
+     */
+    private void sizeImageLayer(int width, int height){
+        tileLayer.setMinSize(width, height);
+        tileLayer.setPrefSize(width, height);
+        tileLayer.setMaxSize(width, height);
+        imgView.setFitWidth(width);
+        imgView.setFitHeight(height);
+    }
+
+    /**
+     * Fills the timings overlay with the latest operation latencies and the cache's hit rate
+     */
+    private void updateTimings(){
+        if (chkTimings.isSelected()){
+            lblTimings.setText(Instrumentation.summary()
+                    + String.format("cache hit rate %.1f%%: %s%n", stageCache.getHitRate() * 100, stageCache)
+                    + String.format("tile hit rate %.1f%%: %s, %d shown%n", tileCache.getHitRate() * 100, tileCache,
+                    tileViews.size())
+                    + "disk cache: " + diskCache + "\n"
+                    + "raster pool: " + RasterPool.getDefault());
+        }
+    }
+
+    /**
+     * @return Interpolation style selected by the radio buttons
+     */
+    private Interpolation currentInterpolation(){
+        if (rdoNearestNeighbour.isSelected()){
+            return Interpolation.NEAREST_NEIGHBOUR;
+        }
+        if (rdoBicubic.isSelected()){
+            return Interpolation.BICUBIC;
+        }
+        if (rdoLanczos.isSelected()){
+            return Interpolation.LANCZOS3;
+        }
+        return Interpolation.BILINEAR;
     }
 
 
@@ -180,9 +671,12 @@ public class PhotoshopController {
         sldScale.setValue(INIT_SCALE_VAL);
         lblScaleValue.setText("1");
         lblGammaValue.setText("1");
-        imgView.setImage(originalImage);
         rdoNearestNeighbour.setSelected(true);
         chkCrossCorrelation.setSelected(false);
+        cmbKernel.setValue(Kernel.LAPLACIAN);
+
+        // Renders through the scheduler too, so a stale render can't replace the original image
+        updateImage(null);
     }
 
 
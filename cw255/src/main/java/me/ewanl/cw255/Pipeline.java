@@ -0,0 +1,488 @@
+package me.ewanl.cw255;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chain of image operations run as few passes as possible.
+ *
+ * Spatial operations (resize, cross correlation filters) each need a pass over their input,
+ * but point operations (gamma) that follow one are fused into its output loop, so
+ * every output pixel is written once and no intermediate image is made for them.
+ * Operations that would leave the image unchanged are skipped entirely.
+ *
+ * Given a StageCache, every stage's output is instead kept and looked up by a key made
+ * of the source's key and the parameters of each stage so far. Only the stages after
+ * the last cached one are run, so changing just the gamma reuses the resized raster.
+ *
+ * <pre>
+ * Raster result = Pipeline.of(source).resize(2, Interpolation.BILINEAR).gamma(2.2).build();
+ * </pre>
+ *
+ * Given a DiskCache too, outputs are also kept on disk under the text of their keys,
+ * so they outlive the run. The source key's text must then name the source's pixels,
+ * e.g. DiskCache.hash, or a changed source would be given an old result.
+ *
+ * Without a cache, every raster between stages is given back to the RasterPool as soon
+ * as the next stage has read it, so only the source and the result outlive the build.
+ *
+ * buildRegion works out just one rectangle of the result. When the last spatial stage
+ * is a resize, only the stages before it are run in full and the resize itself only
+ * computes the rectangle, so an enlarged image can be shown a tile at a time.
+ */
+public final class Pipeline {
+
+    /**
+     * Raster the operations are applied to
+     */
+    private final Raster source;
+
+    /**
+     * Operations, in the order they are applied
+     */
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Identifies the source in cache keys
+     */
+    private final Object sourceKey;
+
+    /**
+     * Cache of each stage's output, or null to fuse stages instead
+     */
+    private StageCache cache;
+
+    /**
+     * Cache of each stage's output on disk, or null to only keep them in memory
+     */
+    private DiskCache disk;
+
+    /**
+     * One operation in the chain
+     */
+    private sealed interface Stage permits Resize, Convolve, Gamma {
+
+        /**
+         * @return The stage and its parameters as text, the same from run to run
+         */
+        String describe();
+    }
+
+    /**
+     * Resizes by a scale, using an interpolation style
+     */
+    private record Resize(double scale, Interpolation interpolation) implements Stage {
+
+        @Override
+        public String describe() {
+            return "resize=" + scale + ":" + interpolation;
+        }
+    }
+
+    /**
+     * Applies a cross correlation filter
+     */
+    private record Convolve(Kernel kernel) implements Stage {
+
+        @Override
+        public String describe() {
+            return "kernel=" + kernel.width + "x" + kernel.height + ":" + Arrays.toString(kernel.weights);
+        }
+    }
+
+    /**
+     * Corrects the gamma using a lookup-table
+     */
+    private record Gamma(GammaLut lut) implements Stage {
+
+        @Override
+        public String describe() {
+            return "gamma=" + lut.getGamma();
+        }
+    }
+
+    /**
+     * Cache key of a stage's output
+     *
+     * @param parent Key of the stage's input
+     * @param stage  Stage, with its parameters
+     */
+    private record StageKey(Object parent, Stage stage) {
+    }
+
+    /**
+     * @param source    Raster the operations are applied to
+     * @param sourceKey Identifies the source in cache keys
+     */
+    private Pipeline(Raster source, Object sourceKey) {
+        this.source = source;
+        this.sourceKey = sourceKey;
+    }
+
+    /**
+     * Starts a chain of operations
+     *
+     * @param source Raster the operations are applied to
+     * @return Empty pipeline
+     */
+    public static Pipeline of(Raster source) {
+        return new Pipeline(source, source);
+    }
+
+    /**
+     * Starts a chain of operations on a source identified by a key, rather than by the raster itself
+     *
+     * @param source    Raster the operations are applied to
+     * @param sourceKey Identifies the source in cache keys, e.g. its file name
+     * @return Empty pipeline
+     */
+    public static Pipeline of(Raster source, Object sourceKey) {
+        return new Pipeline(source, sourceKey);
+    }
+
+    /**
+     * Keeps each stage's output in a cache, reusing any already there
+     *
+     * @param cache Cache of stage outputs
+     * @return This pipeline
+     */
+    public Pipeline cachedIn(StageCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Also keeps each stage's output on disk, reusing any already there
+     *
+     * @param disk Cache of stage outputs on disk
+     * @return This pipeline
+     */
+    public Pipeline persistedIn(DiskCache disk) {
+        this.disk = disk;
+        return this;
+    }
+
+    /**
+     * Adds a resize, skipped if it would not change the size
+     *
+     * @param scale         Scale of resizing
+     * @param interpolation Interpolation style to resize with
+     * @return This pipeline
+     */
+    public Pipeline resize(double scale, Interpolation interpolation) {
+        if (scale != 1) {
+            stages.add(new Resize(scale, interpolation));
+        }
+        return this;
+    }
+
+    /**
+     * Adds a gamma correction, skipped if the gamma is 1
+     *
+     * @param gamma Gamma value
+     * @return This pipeline
+     */
+    public Pipeline gamma(double gamma) {
+        GammaLut lut = GammaLut.forGamma(gamma);
+        if (!lut.isIdentity()) {
+            stages.add(new Gamma(lut));
+        }
+        return this;
+    }
+
+    /**
+     * Adds the laplacian cross correlation filter
+     *
+     * @return This pipeline
+     */
+    public Pipeline laplace() {
+        return convolve(Kernel.LAPLACIAN);
+    }
+
+    /**
+     * Adds a cross correlation filter
+     *
+     * @param kernel Kernel of the filter
+     * @return This pipeline
+     */
+    public Pipeline convolve(Kernel kernel) {
+        stages.add(new Convolve(kernel));
+        return this;
+    }
+
+    /**
+     * @return Width of the result, worked out without running the operations
+     */
+    public int getWidth() {
+        int width = source.width;
+        for (Stage stage : stages) {
+            if (stage instanceof Resize resize) {
+                width = (int) (width * resize.scale());
+            } else if (stage instanceof Convolve convolve) {
+                width -= convolve.kernel().getWidth() - 1;
+            }
+        }
+        return width;
+    }
+
+    /**
+     * @return Height of the result, worked out without running the operations
+     */
+    public int getHeight() {
+        int height = source.height;
+        for (Stage stage : stages) {
+            if (stage instanceof Resize resize) {
+                height = (int) (height * resize.scale());
+            } else if (stage instanceof Convolve convolve) {
+                height -= convolve.kernel().getHeight() - 1;
+            }
+        }
+        return height;
+    }
+
+    /**
+     * @return Key identifying the result: the source's key and every stage's parameters
+     */
+    public Object getKey() {
+        Object key = sourceKey;
+        for (Stage stage : stages) {
+            key = new StageKey(key, stage);
+        }
+        return key;
+    }
+
+    /**
+     * @return Text identifying the result in a DiskCache: the source key's text and every stage's parameters
+     */
+    public String getName() {
+        return name(stages.size());
+    }
+
+    /**
+     * Runs the operations
+     *
+     * @return Resulting raster, which is the source itself if there were no operations
+     */
+    public Raster build() {
+        return build(stages.size());
+    }
+
+    /**
+     * Runs the operations, writing the result into a raster that already exists,
+     * e.g. one whose pixels are being shown on screen.
+     *
+     * Gammas at the end are applied straight into the destination, so while only they
+     * change (and the stages before them are cached) nothing new is allocated. Otherwise
+     * the result is built as usual and copied in.
+     *
+     * @param destination Raster the size of the result
+     */
+    public void buildInto(Raster destination) {
+        if (destination.width != getWidth() || destination.height != getHeight()) {
+            throw new IllegalArgumentException("Destination is " + destination.width + "x" + destination.height
+                    + ", not " + getWidth() + "x" + getHeight());
+        }
+
+        // Finds the gammas at the end, if any
+        int first = stages.size();
+        GammaLut lut = null;
+        while (first > 0 && stages.get(first - 1) instanceof Gamma gamma) {
+            lut = (lut == null) ? gamma.lut() : compose(gamma.lut(), lut);
+            first--;
+        }
+
+        Raster input = build(lut == null ? stages.size() : first);
+        CancellationToken.current().throwIfCancelled();
+        if (lut != null) {
+            Photoshop.gammaCorrect(input, lut, destination);
+        } else {
+            System.arraycopy(input.pixels, 0, destination.pixels, 0, destination.width * destination.height);
+        }
+        releaseIntermediate(input);
+    }
+
+    /**
+     * Runs the operations, but only works out one rectangle of the result.
+     *
+     * If the last spatial stage is a resize, the stages before it are run (or found in the
+     * cache) and the resize only computes the rectangle, with any gammas after it fused in.
+     * Otherwise the whole result is built and the rectangle copied out of it.
+     *
+     * @param x      Left of the rectangle
+     * @param y      Top of the rectangle
+     * @param width  Width of the rectangle
+     * @param height Height of the rectangle
+     * @return Raster holding the rectangle of the result
+     */
+    public Raster buildRegion(int x, int y, int width, int height) {
+
+        // Finds the last spatial stage, and the point operations following it
+        int last = stages.size() - 1;
+        GammaLut lut = null;
+        while (last >= 0 && stages.get(last) instanceof Gamma gamma) {
+            lut = (lut == null) ? gamma.lut() : compose(gamma.lut(), lut);
+            last--;
+        }
+
+        if (last >= 0 && stages.get(last) instanceof Resize resize) {
+            Raster input = build(last);
+            CancellationToken.current().throwIfCancelled();
+            Raster region = Photoshop.resizeRegion(input, resize.scale(), resize.interpolation(), lut, x, y, width, height);
+            releaseIntermediate(input);
+            return region;
+        }
+        Raster whole = build();
+        Raster region = whole.crop(x, y, width, height);
+        releaseIntermediate(whole);
+        return region;
+    }
+
+    /**
+     * Runs the first few operations
+     *
+     * @param count Number of stages run
+     * @return Resulting raster, which is the source itself if count is 0
+     */
+    private Raster build(int count) {
+        if (cache != null || disk != null) {
+            return buildCached(count);
+        }
+
+        Raster current = source;
+
+        // Spatial operation waiting to run, and the point operations following it
+        Stage spatial = null;
+        GammaLut lut = null;
+
+        for (Stage stage : stages.subList(0, count)) {
+            if (stage instanceof Gamma gamma) {
+                lut = (lut == null) ? gamma.lut() : compose(lut, gamma.lut());
+            } else {
+                current = runAndRelease(current, spatial, lut);
+                CancellationToken.current().throwIfCancelled();
+                spatial = stage;
+                lut = null;
+            }
+        }
+        return runAndRelease(current, spatial, lut);
+    }
+
+    /**
+     * Runs a spatial operation with its point operations fused into its output, then gives
+     * its input back to the pool, unless that's the source or the output itself
+     *
+     * @param input   Raster to operate on
+     * @param spatial Spatial operation, or null if the point operations come first
+     * @param lut     Fused lookup-table, or null for none
+     * @return Resulting raster
+     */
+    private Raster runAndRelease(Raster input, Stage spatial, GammaLut lut) {
+        Raster output = run(input, spatial, lut);
+        if (output != input) {
+            releaseIntermediate(input);
+        }
+        return output;
+    }
+
+    /**
+     * Gives a raster made during a build back to the pool, unless it's the source or may be cached
+     *
+     * @param raster Raster no longer needed
+     */
+    private void releaseIntermediate(Raster raster) {
+        if (raster != source && cache == null && disk == null) {
+            RasterPool.getDefault().release(raster);
+        }
+    }
+
+    /**
+     * Runs the stages after the last one with a cached output, in memory or on disk,
+     * caching each of their outputs
+     *
+     * @param count Number of stages run
+     * @return Resulting raster
+     */
+    private Raster buildCached(int count) {
+
+        // Works out every stage's key
+        Object[] keys = new Object[count + 1];
+        keys[0] = sourceKey;
+        for (int i = 0; i < count; i++) {
+            keys[i + 1] = new StageKey(keys[i], stages.get(i));
+        }
+
+        // Finds the last stage with a cached output, loading it into memory if it was only on disk
+        Raster current = source;
+        int done = 0;
+        for (int i = count; i > 0; i--) {
+            Raster cached = (cache == null) ? null : cache.get(keys[i]);
+            if (cached == null && disk != null) {
+                cached = disk.get(name(i));
+                if (cached != null && cache != null) {
+                    cache.put(keys[i], cached);
+                }
+            }
+            if (cached != null) {
+                current = cached;
+                done = i;
+                break;
+            }
+        }
+
+        // Runs and caches the rest
+        for (int i = done; i < count; i++) {
+            Stage stage = stages.get(i);
+            current = (stage instanceof Gamma gamma) ? run(current, null, gamma.lut()) : run(current, stage, null);
+            CancellationToken.current().throwIfCancelled();
+            if (cache != null) {
+                cache.put(keys[i + 1], current);
+            }
+            if (disk != null) {
+                disk.put(name(i + 1), current);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @param count Number of stages
+     * @return Text identifying the output of the first few stages in a DiskCache
+     */
+    private String name(int count) {
+        StringBuilder name = new StringBuilder(String.valueOf(sourceKey));
+        for (Stage stage : stages.subList(0, count)) {
+            name.append(',').append(stage.describe());
+        }
+        return name.toString();
+    }
+
+    /**
+     * Runs a spatial operation with its point operations fused into its output
+     *
+     * @param input   Raster to operate on
+     * @param spatial Spatial operation, or null if the point operations come first
+     * @param lut     Fused lookup-table, or null for none
+     * @return Resulting raster
+     */
+    private static Raster run(Raster input, Stage spatial, GammaLut lut) {
+        if (spatial instanceof Resize resize) {
+            return Photoshop.resizeImage(input, resize.scale(), resize.interpolation(), lut);
+        }
+        if (spatial instanceof Convolve convolve) {
+            return Photoshop.applyKernel(input, convolve.kernel(), lut);
+        }
+        return lut == null ? input : Photoshop.gammaCorrect(input, lut);
+    }
+
+    /**
+     * Combines two gamma corrections applied one after the other into one
+     *
+     * @param first  Lookup-table applied first
+     * @param second Lookup-table applied second
+     * @return Lookup-table with the same effect as both, rounding to 8 bits between them included
+     */
+    private static GammaLut compose(GammaLut first, GammaLut second) {
+        return first.then(second);
+    }
+}
@@ -0,0 +1,131 @@
+package me.ewanl.cw255;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Image pixels held as packed, non-premultiplied ARGB words in a single int[],
+ * stored row by row. Lets the kernels read and write pixels with plain array
+ * indexing rather than a PixelReader/PixelWriter call per pixel.
+ */
+public final class Raster implements RowSource {
+
+    /**
+     * Width of the raster, in pixels
+     */
+    final int width;
+
+    /**
+     * Height of the raster, in pixels
+     */
+    final int height;
+
+    /**
+     * Packed ARGB pixels, index (y * width + x)
+     */
+    final int[] pixels;
+
+    /**
+     * Creates a new, fully transparent raster
+     *
+     * @param width  Width in pixels
+     * @param height Height in pixels
+     */
+    public Raster(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    /**
+     * Wraps an existing array of packed ARGB pixels
+     *
+     * @param width  Width in pixels
+     * @param height Height in pixels
+     * @param pixels Packed ARGB pixels, at least width * height long
+     */
+    public Raster(int width, int height, int[] pixels) {
+        if (width < 0 || height < 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid raster size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Reads every pixel of an image with a single bulk call
+     *
+     * @param image Image to read
+     * @return Raster holding a copy of the image's pixels
+     */
+    public static Raster fromImage(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+
+        Raster raster = new Raster(width, height);
+        image.getPixelReader().getPixels(0, 0, width, height,
+                PixelFormat.getIntArgbInstance(), raster.pixels, 0, width);
+        return raster;
+    }
+
+    /**
+     * Writes the raster out to a new image with a single bulk call
+     *
+     * @return Image holding a copy of the raster's pixels
+     */
+    public WritableImage toImage() {
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height,
+                PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        return image;
+    }
+
+    /**
+     * Copies out one rectangle of the raster
+     *
+     * @param x      Left of the rectangle
+     * @param y      Top of the rectangle
+     * @param width  Width of the rectangle
+     * @param height Height of the rectangle
+     * @return New raster holding the rectangle's pixels
+     */
+    public Raster crop(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > this.width || y + height > this.height) {
+            throw new IllegalArgumentException("Rectangle " + width + "x" + height + " at " + x + "," + y
+                    + " is outside the " + this.width + "x" + this.height + " raster");
+        }
+        Raster cropped = RasterPool.getDefault().acquireRaster(width, height);
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, (y + row) * this.width + x, cropped.pixels, row * width, width);
+        }
+        return cropped;
+    }
+
+    @Override
+    public void readRow(int y, int[] argb) {
+        System.arraycopy(pixels, y * width, argb, 0, width);
+    }
+
+    /**
+     * @return Width in pixels
+     */
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height in pixels
+     */
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Backing array of packed ARGB pixels, not a copy
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+}
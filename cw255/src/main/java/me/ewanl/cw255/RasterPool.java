@@ -0,0 +1,241 @@
+package me.ewanl.cw255;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of large pixel and response arrays, handed out by size class and taken back once
+ * whoever had them is done, so steady streams of operations stop allocating (and the
+ * collector stops copying) a full image's worth of memory per plane.
+ *
+ * Classes are the lengths 4, 5, 6 and 7 times a power of two, so an array is at most a
+ * quarter longer than asked for. Arrays shorter than MIN_LENGTH are cheap to allocate and
+ * aren't pooled. Released arrays are kept until the pool holds its limit in bytes; past
+ * that they're left to the collector. Arrays that are never released are simply collected,
+ * so only owners that know an array's last use need to release it.
+ *
+ * Pooled arrays keep whatever was last written to them, so each must be filled completely.
+ * The default pool's limit can be set with the system property "cw255.pool.bytes".
+ */
+public final class RasterPool {
+
+    /**
+     * Shortest array pooled; shorter ones are allocated as usual
+     */
+    public static final int MIN_LENGTH = 1 << 16;
+
+    /**
+     * Pool used by the image operations
+     */
+    private static final RasterPool defaultPool = new RasterPool(Long.getLong("cw255.pool.bytes", 128L << 20));
+
+    /**
+     * Most bytes of released arrays kept
+     */
+    private final long maxBytes;
+
+    /**
+     * Released arrays waiting to be reused, by length
+     */
+    private final Map<Integer, ArrayDeque<int[]>> free = new HashMap<>();
+
+    /**
+     * Bytes of released arrays kept
+     */
+    private long retainedBytes;
+
+    /**
+     * Number of arrays handed out
+     */
+    private long acquires;
+
+    /**
+     * Number of arrays handed out that were reused rather than allocated
+     */
+    private long reuses;
+
+    /**
+     * Number of arrays given back
+     */
+    private long releases;
+
+    /**
+     * Number of arrays given back but not kept, as the pool was full
+     */
+    private long drops;
+
+    /**
+     * @param maxBytes Most bytes of released arrays kept
+     */
+    public RasterPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return Pool used by the image operations
+     */
+    public static RasterPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Hands out an array at least a given length, reusing a released one of its class if there is one
+     *
+     * @param length Number of ints wanted
+     * @return Array at least length long, holding whatever was last written to it
+     */
+    public int[] acquire(int length) {
+        if (length < MIN_LENGTH) {
+            return new int[length];
+        }
+
+        int classLength = classLength(length);
+        synchronized (this) {
+            acquires++;
+            ArrayDeque<int[]> arrays = free.get(classLength);
+            int[] array = (arrays == null) ? null : arrays.pollLast();
+            if (array != null) {
+                retainedBytes -= bytesOf(array);
+                reuses++;
+                return array;
+            }
+        }
+        return new int[classLength];
+    }
+
+    /**
+     * Hands out a raster whose pixels come from the pool
+     *
+     * @param width  Width in pixels
+     * @param height Height in pixels
+     * @return Raster holding whatever was last written to its pixels, so every one must be written
+     */
+    public Raster acquireRaster(int width, int height) {
+        return new Raster(width, height, acquire(width * height));
+    }
+
+    /**
+     * Gives an array back to be reused. Arrays that aren't of a class, e.g. ones that didn't come
+     * from a pool, are left to the collector. The array must not be used afterwards.
+     *
+     * @param array Array to give back
+     */
+    public void release(int[] array) {
+        if (array.length < MIN_LENGTH || classLength(array.length) != array.length) {
+            return;
+        }
+
+        synchronized (this) {
+            releases++;
+            if (retainedBytes + bytesOf(array) > maxBytes) {
+                drops++;
+                return;
+            }
+            free.computeIfAbsent(array.length, length -> new ArrayDeque<>()).addLast(array);
+            retainedBytes += bytesOf(array);
+        }
+    }
+
+    /**
+     * Gives a raster's pixels back to be reused. Neither the raster nor its pixels may be used afterwards.
+     *
+     * @param raster Raster to give back
+     */
+    public void release(Raster raster) {
+        release(raster.pixels);
+    }
+
+    /**
+     * Drops every kept array, keeping the counters
+     */
+    public synchronized void clear() {
+        free.clear();
+        retainedBytes = 0;
+    }
+
+    /**
+     * Works out the class an array length falls in: the smallest of 4, 5, 6, or 7 times a power of two that fits it
+     *
+     * @param length Number of ints wanted
+     * @return Length of the class's arrays, or length itself if it's too short or long for a class
+     */
+    static int classLength(int length) {
+        if (length <= 8) {
+            return length;
+        }
+
+        // 4 << shift <= length - 1 < 8 << shift, so the multiple needed is 5 to 8
+        int shift = 31 - Integer.numberOfLeadingZeros(length - 1) - 2;
+        int multiple = ((length - 1) >> shift) + 1;
+        if (multiple == 8) {
+            multiple = 4;
+            shift++;
+        }
+        int classLength = multiple << shift;
+        return classLength > 0 ? classLength : length;
+    }
+
+    /**
+     * @param array Array to measure
+     * @return Bytes it holds
+     */
+    private static long bytesOf(int[] array) {
+        return (long) array.length * Integer.BYTES;
+    }
+
+    /**
+     * @return Most bytes of released arrays kept
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Bytes of released arrays kept
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return Number of released arrays kept
+     */
+    public synchronized int getRetained() {
+        return free.values().stream().mapToInt(ArrayDeque::size).sum();
+    }
+
+    /**
+     * @return Number of arrays handed out
+     */
+    public synchronized long getAcquires() {
+        return acquires;
+    }
+
+    /**
+     * @return Number of arrays handed out that were reused rather than allocated
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * @return Number of arrays given back
+     */
+    public synchronized long getReleases() {
+        return releases;
+    }
+
+    /**
+     * @return Number of arrays given back but not kept, as the pool was full
+     */
+    public synchronized long getDrops() {
+        return drops;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d kept, %.1f/%.1f MB, %d acquired, %d reused, %d released, %d dropped",
+                getRetained(), retainedBytes / 1048576.0, maxBytes / 1048576.0, acquires, reuses, releases, drops);
+    }
+}
@@ -0,0 +1,90 @@
+package me.ewanl.cw255;
+
+import javafx.application.Platform;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs renders one at a time on a background thread, keeping only the newest.
+ *
+ * Submitting a render cancels the one in flight (which stops at its next band of rows)
+ * and any still waiting are skipped when their turn comes. A result is only handed to
+ * the JavaFX Application Thread if no newer render has been submitted since.
+ */
+public final class RenderScheduler {
+
+    /**
+     * Thread the renders run on
+     */
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photoshop-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Number of the newest render submitted
+     */
+    private final AtomicLong latest = new AtomicLong();
+
+    /**
+     * Token of the newest render submitted
+     */
+    private volatile CancellationToken currentToken = CancellationToken.NONE;
+
+    /**
+     * Submits a render, cancelling any older one
+     *
+     * @param render  Work done on the background thread
+     * @param publish Called on the JavaFX Application Thread with the result, if still the newest
+     * @param <T>     Type of result
+     */
+    public <T> void submit(Supplier<T> render, Consumer<T> publish) {
+        long generation = latest.incrementAndGet();
+        CancellationToken token = new CancellationToken();
+
+        // Stops the render in flight, if any
+        currentToken.cancel();
+        currentToken = token;
+
+        worker.execute(() -> {
+
+            // Skips renders superseded while they were waiting
+            if (generation != latest.get()) {
+                return;
+            }
+
+            T result;
+            try {
+                result = token.call(render);
+            } catch (CancellationException e) {
+                return;
+            } catch (RuntimeException e) {
+                if (token.isCancelled()) {
+                    return;
+                }
+                throw e;
+            }
+
+            Platform.runLater(() -> {
+                if (generation == latest.get()) {
+                    publish.accept(result);
+                }
+            });
+        });
+    }
+
+    /**
+     * Cancels the render in flight and stops the background thread
+     */
+    public void shutdown() {
+        latest.incrementAndGet();
+        currentToken.cancel();
+        worker.shutdown();
+    }
+}
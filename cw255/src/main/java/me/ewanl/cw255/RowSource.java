@@ -0,0 +1,28 @@
+package me.ewanl.cw255;
+
+/**
+ * Image that hands out its pixels a row at a time, so it never has to be held in memory whole.
+ *
+ * Rows are cheapest read from top to bottom. Reading an earlier row is allowed, but may
+ * mean re-reading or recomputing the rows it depends on.
+ */
+public interface RowSource {
+
+    /**
+     * @return Width in pixels
+     */
+    int getWidth();
+
+    /**
+     * @return Height in pixels
+     */
+    int getHeight();
+
+    /**
+     * Reads one row of packed ARGB pixels
+     *
+     * @param y    Row to read
+     * @param argb Array the row is written to, at least getWidth() long
+     */
+    void readRow(int y, int[] argb);
+}
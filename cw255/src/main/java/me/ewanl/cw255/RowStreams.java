@@ -0,0 +1,438 @@
+package me.ewanl.cw255;
+
+/**
+ * Streaming versions of the image operations, working a row at a time.
+ *
+ * Each operation wraps a RowSource in another RowSource and only keeps the source rows
+ * its kernel covers: one for nearest-neighbour, two for bilinear, a column of taps for
+ * bicubic and Lanczos-3, and the kernel height
+ * (5 for the laplacian) for filters. Chained together over a file-backed source, the
+ * memory used is proportional to the image width rather than its size.
+ */
+public final class RowStreams {
+
+    private RowStreams() {
+    }
+
+    /**
+     * Resizes rows as they are read
+     *
+     * @param source        Rows to resize
+     * @param scale         Scale of resizing
+     * @param interpolation Interpolation style to resize with
+     * @return Resized rows
+     */
+    public static RowSource resize(RowSource source, double scale, Interpolation interpolation) {
+        int newWidth = (int) (source.getWidth() * scale);
+        int newHeight = (int) (source.getHeight() * scale);
+
+        // Halves the rows down to the same mipmap level the in-memory resize starts from
+        int levels = MipmapPyramid.levelIndex(source.getWidth(), source.getHeight(), newWidth, newHeight);
+        for (int i = 0; i < levels; i++) {
+            source = new HalvedRows(source);
+        }
+        return switch (interpolation) {
+            case NEAREST_NEIGHBOUR -> new NearestRows(source, newWidth, newHeight);
+            case BILINEAR -> new BilinearRows(source, newWidth, newHeight);
+            case BICUBIC, LANCZOS3 -> new SeparableRows(source, newWidth, newHeight, interpolation);
+        };
+    }
+
+    /**
+     * Gamma-corrects rows as they are read
+     *
+     * @param source Rows to correct
+     * @param gamma  Gamma value
+     * @return Corrected rows
+     */
+    public static RowSource gamma(RowSource source, double gamma) {
+        GammaLut lut = GammaLut.forGamma(gamma);
+        if (lut.isIdentity()) {
+            return source;
+        }
+        return new RowSource() {
+            @Override
+            public int getWidth() {
+                return source.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return source.getHeight();
+            }
+
+            @Override
+            public void readRow(int y, int[] argb) {
+                source.readRow(y, argb);
+                lut.apply(argb, 0, argb, 0, source.getWidth());
+            }
+        };
+    }
+
+    /**
+     * Applies the laplacian cross correlation filter to rows as they are read
+     *
+     * @param source Rows to filter
+     * @return Filtered rows
+     */
+    public static RowSource laplace(RowSource source) {
+        return filter(source, Kernel.LAPLACIAN);
+    }
+
+    /**
+     * Applies a cross correlation filter to rows as they are read. The filter's min/max
+     * normalisation needs every response, so the first row read makes an extra pass
+     * over the whole source.
+     *
+     * @param source Rows to filter
+     * @param kernel Kernel to correlate with
+     * @return Filtered rows
+     */
+    public static RowSource filter(RowSource source, Kernel kernel) {
+        return new FilteredRows(source, kernel);
+    }
+
+    /**
+     * One mipmap level down, each row averaged from the two source rows below it
+     */
+    private static final class HalvedRows implements RowSource {
+
+        private final RowSource source;
+        private final int width;
+        private final int height;
+
+        /**
+         * Pair of source rows being averaged
+         */
+        private final int[] topRow;
+        private final int[] bottomRow;
+
+        HalvedRows(RowSource source) {
+            this.source = source;
+            this.width = source.getWidth() / 2;
+            this.height = source.getHeight() / 2;
+            this.topRow = new int[source.getWidth()];
+            this.bottomRow = new int[source.getWidth()];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int y, int[] argb) {
+            source.readRow(2 * y, topRow);
+            source.readRow(2 * y + 1, bottomRow);
+            MipmapPyramid.halveRow(topRow, 0, bottomRow, 0, argb, 0, width);
+        }
+    }
+
+    /**
+     * Nearest-neighbour resize, keeping the last source row read
+     */
+    private static final class NearestRows implements RowSource {
+
+        private final RowSource source;
+        private final int newWidth;
+        private final int newHeight;
+
+        /**
+         * Column within the source used by each new column
+         */
+        private final int[] columns;
+
+        /**
+         * Last source row read, and which row it was
+         */
+        private final int[] sourceRow;
+        private int cachedRow = -1;
+
+        NearestRows(RowSource source, int newWidth, int newHeight) {
+            this.source = source;
+            this.newWidth = newWidth;
+            this.newHeight = newHeight;
+            this.sourceRow = new int[source.getWidth()];
+            this.columns = new int[newWidth];
+            for (int i = 0; i < newWidth; i++) {
+                columns[i] = (int) (source.getWidth() * (double) i / (double) newWidth);
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return newWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return newHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] argb) {
+            int row = (int) (source.getHeight() * (double) y / (double) newHeight);
+            if (row != cachedRow) {
+                source.readRow(row, sourceRow);
+                cachedRow = row;
+            }
+            for (int i = 0; i < newWidth; i++) {
+                argb[i] = sourceRow[columns[i]];
+            }
+        }
+    }
+
+    /**
+     * Bilinear resize, keeping the two horizontally interpolated source rows last used
+     */
+    private static final class BilinearRows implements RowSource {
+
+        private final RowSource source;
+        private final int newWidth;
+        private final int newHeight;
+        private final BilinearResampler.AxisTable columns;
+        private final BilinearResampler.AxisTable rows;
+
+        /**
+         * Raw source row being interpolated
+         */
+        private final int[] sourceRow;
+
+        /**
+         * Horizontally interpolated source rows, and which rows they are
+         */
+        private final long[][] redBlue;
+        private final long[][] alphaGreen;
+        private final int[] cachedRow = {-1, -1};
+
+        BilinearRows(RowSource source, int newWidth, int newHeight) {
+            this.source = source;
+            this.newWidth = newWidth;
+            this.newHeight = newHeight;
+            this.columns = BilinearResampler.table(source.getWidth(), newWidth);
+            this.rows = BilinearResampler.table(source.getHeight(), newHeight);
+            this.sourceRow = new int[source.getWidth()];
+            this.redBlue = new long[2][newWidth];
+            this.alphaGreen = new long[2][newWidth];
+        }
+
+        @Override
+        public int getWidth() {
+            return newWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return newHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] argb) {
+            int top = load(rows.lower[y], -1);
+            int bottom = load(rows.upper[y], top);
+            BilinearResampler.blendRows(redBlue[top], alphaGreen[top], redBlue[bottom], alphaGreen[bottom],
+                    rows.weight[y], argb, 0, null);
+        }
+
+        /**
+         * Makes sure a source row is interpolated into one of the two buffers
+         *
+         * @param row  Source row needed
+         * @param keep Buffer that mustn't be replaced, or -1
+         * @return Buffer holding the row
+         */
+        private int load(int row, int keep) {
+            if (cachedRow[0] == row) {
+                return 0;
+            }
+            if (cachedRow[1] == row) {
+                return 1;
+            }
+
+            // Replaces the higher-up row, unless it's the one being kept
+            int slot = cachedRow[0] < cachedRow[1] ? 0 : 1;
+            if (slot == keep) {
+                slot = 1 - slot;
+            }
+            source.readRow(row, sourceRow);
+            BilinearResampler.interpolateRow(sourceRow, 0, columns, 0, redBlue[slot], alphaGreen[slot]);
+            cachedRow[slot] = row;
+            return slot;
+        }
+    }
+
+    /**
+     * Bicubic or Lanczos-3 resize, keeping a window of the horizontally filtered source rows
+     * a column of taps covers
+     */
+    private static final class SeparableRows implements RowSource {
+
+        private final RowSource source;
+        private final int newWidth;
+        private final int newHeight;
+        private final SeparableResampler.WeightTable columns;
+        private final SeparableResampler.WeightTable rows;
+        private final SeparableResampler.Window window;
+
+        /**
+         * Raw source row being filtered
+         */
+        private final int[] sourceRow;
+
+        SeparableRows(RowSource source, int newWidth, int newHeight, Interpolation filter) {
+            this.source = source;
+            this.newWidth = newWidth;
+            this.newHeight = newHeight;
+            this.columns = SeparableResampler.table(filter, source.getWidth(), newWidth);
+            this.rows = SeparableResampler.table(filter, source.getHeight(), newHeight);
+            this.window = new SeparableResampler.Window(rows.taps, newWidth);
+            this.sourceRow = new int[source.getWidth()];
+        }
+
+        @Override
+        public int getWidth() {
+            return newWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return newHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] argb) {
+            for (int t = 0; t < rows.taps; t++) {
+                int row = rows.index[y * rows.taps + t];
+                if (!window.holds(row)) {
+                    source.readRow(row, sourceRow);
+                    SeparableResampler.horizontalRow(sourceRow, 0, columns, 0, window.load(row), newWidth);
+                }
+            }
+            SeparableResampler.verticalRow(window, rows, y, argb, 0, null);
+        }
+    }
+
+    /**
+     * Cross correlation filter, keeping a rolling window of the source rows the kernel covers
+     */
+    private static final class FilteredRows implements RowSource {
+
+        private final RowSource source;
+        private final Kernel kernel;
+        private final int outWidth;
+        private final int outHeight;
+
+        /**
+         * Raw source row being unpacked
+         */
+        private final int[] sourceRow;
+
+        /**
+         * Window of unpacked source rows, row y of the source kept in slot y % kernel height
+         */
+        private final int[][] windowRed;
+        private final int[][] windowGreen;
+        private final int[][] windowBlue;
+
+        /**
+         * Source row under the kernel's top row, or -1 if the window is empty
+         */
+        private int windowTop = -1;
+
+        /**
+         * Raw responses of the row being read
+         */
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+
+        /**
+         * Min/max of every response, worked out on the first read
+         */
+        private int[] range;
+
+        FilteredRows(RowSource source, Kernel kernel) {
+            this.source = source;
+            this.kernel = kernel;
+            this.outWidth = source.getWidth() - kernel.width + 1;
+            this.outHeight = source.getHeight() - kernel.height + 1;
+            if (outWidth <= 0 || outHeight <= 0) {
+                throw new IllegalArgumentException("Image is smaller than the " + kernel.width + "x" + kernel.height + " kernel");
+            }
+
+            int width = source.getWidth();
+            this.sourceRow = new int[width];
+            this.windowRed = new int[kernel.height][width];
+            this.windowGreen = new int[kernel.height][width];
+            this.windowBlue = new int[kernel.height][width];
+            this.red = new int[outWidth];
+            this.green = new int[outWidth];
+            this.blue = new int[outWidth];
+        }
+
+        @Override
+        public int getWidth() {
+            return outWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return outHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] argb) {
+
+            // Makes a first pass over every row for the min/max values, used to apply the filter
+            if (range == null) {
+                int[] fullRange = ConvolutionEngine.emptyRange();
+                for (int row = 0; row < outHeight; row++) {
+                    responses(row);
+                    ConvolutionEngine.widenRange(fullRange, red, green, blue, 0, outWidth);
+                }
+                range = fullRange;
+            }
+
+            responses(y);
+            ConvolutionEngine.normaliseRow(red, green, blue, 0, range, null, argb, 0, outWidth);
+        }
+
+        /**
+         * Works out the raw responses of one output row
+         *
+         * @param y Output row
+         */
+        private void responses(int y) {
+            int kernelHeight = kernel.height;
+
+            // Slides the window down a row if it can, otherwise refills it
+            if (windowTop >= 0 && y == windowTop + 1) {
+                loadRow(y + kernelHeight - 1);
+            } else if (y != windowTop) {
+                for (int row = y; row < y + kernelHeight; row++) {
+                    loadRow(row);
+                }
+            }
+            windowTop = y;
+
+            ConvolutionEngine.correlateRow(kernel, windowRed, windowGreen, windowBlue, y,
+                    red, green, blue, 0, outWidth);
+        }
+
+        /**
+         * Reads and unpacks a source row into its window slot
+         *
+         * @param row Source row
+         */
+        private void loadRow(int row) {
+            int slot = row % kernel.height;
+            source.readRow(row, sourceRow);
+            ConvolutionEngine.unpackRow(sourceRow, 0, windowRed[slot], windowGreen[slot], windowBlue[slot]);
+        }
+    }
+}
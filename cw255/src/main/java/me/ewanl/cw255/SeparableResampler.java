@@ -0,0 +1,400 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bicubic and Lanczos-3 resize, as two separable 1-D passes with precomputed weight tables.
+ *
+ * Each axis has a table giving, for every destination index, the first of a fixed number
+ * of source taps and a 12-bit fixed-point weight for each, summing to exactly ONE. Like
+ * BilinearResampler's, tables only depend on the filter and sizes, so are cached between
+ * frames. Each band of output rows keeps a rolling window of horizontally filtered source
+ * rows, only as many as a column of taps, which the vertical pass combines into each
+ * output row. Channels are clamped to 0-255 at the end, as both filters overshoot at edges.
+ */
+public final class SeparableResampler {
+
+    /**
+     * Number of weight tables kept in the cache
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Bits of fraction in each weight
+     */
+    private static final int WEIGHT_BITS = 12;
+
+    /**
+     * Fixed-point weight representing 1.0
+     */
+    private static final int ONE = 1 << WEIGHT_BITS;
+
+    /**
+     * Bits of fraction kept in the horizontal pass's output, so the vertical pass's sums fit an int
+     */
+    private static final int INTERMEDIATE_BITS = 8;
+
+    /**
+     * Most recently used weight tables, keyed by (filter, source size, destination size)
+     */
+    private static final Map<TableKey, WeightTable> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TableKey, WeightTable> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private SeparableResampler() {
+    }
+
+    /**
+     * Identifies a weight table
+     *
+     * @param filter  Interpolation style
+     * @param srcSize Number of source pixels along the axis
+     * @param dstSize Number of destination pixels along the axis
+     */
+    private record TableKey(Interpolation filter, int srcSize, int dstSize) {
+    }
+
+    /**
+     * Source taps and weights for every destination index along one axis
+     */
+    static final class WeightTable {
+
+        /**
+         * Number of taps per destination index
+         */
+        final int taps;
+
+        /**
+         * First source index of each destination index, before clamping to the edges
+         */
+        final int[] start;
+
+        /**
+         * Source index of each tap, clamped to the edges, at (destination index * taps + tap)
+         */
+        final int[] index;
+
+        /**
+         * Weight of each tap out of ONE, at (destination index * taps + tap)
+         */
+        final int[] weight;
+
+        /**
+         * Builds the table, sampling the filter at each tap's distance from the destination
+         * pixel's centre, stretched when downscaling so every source pixel is covered
+         *
+         * @param filter  Interpolation style, BICUBIC or LANCZOS3
+         * @param srcSize Number of source pixels along the axis
+         * @param dstSize Number of destination pixels along the axis
+         */
+        WeightTable(Interpolation filter, int srcSize, int dstSize) {
+            double factor = (double) srcSize / (double) dstSize;
+            double stretch = Math.max(1.0, factor);
+            double support = support(filter) * stretch;
+
+            taps = (int) Math.ceil(2 * support);
+            start = new int[dstSize];
+            index = new int[dstSize * taps];
+            weight = new int[dstSize * taps];
+
+            double[] raw = new double[taps];
+            for (int i = 0; i < dstSize; i++) {
+                double centre = (i + 0.5) * factor - 0.5;
+                int first = (int) Math.floor(centre - support) + 1;
+                start[i] = first;
+
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    raw[t] = kernel(filter, (first + t - centre) / stretch);
+                    sum += raw[t];
+                }
+
+                // Rounds the normalised weights, giving the rounding error to the biggest so they sum to ONE
+                int total = 0, biggest = 0;
+                for (int t = 0; t < taps; t++) {
+                    int w = (int) Math.round(raw[t] / sum * ONE);
+                    weight[i * taps + t] = w;
+                    index[i * taps + t] = Math.max(0, Math.min(srcSize - 1, first + t));
+                    total += w;
+                    if (w > weight[i * taps + biggest]) {
+                        biggest = t;
+                    }
+                }
+                weight[i * taps + biggest] += ONE - total;
+            }
+        }
+    }
+
+    /**
+     * @param filter Interpolation style
+     * @return Distance from the centre beyond which the filter is 0
+     */
+    private static double support(Interpolation filter) {
+        return filter == Interpolation.LANCZOS3 ? 3 : 2;
+    }
+
+    /**
+     * @param filter Interpolation style
+     * @param x      Distance from the centre, in source pixels
+     * @return Unnormalised weight at that distance
+     */
+    private static double kernel(Interpolation filter, double x) {
+        x = Math.abs(x);
+        if (filter == Interpolation.LANCZOS3) {
+            if (x < 1e-9) {
+                return 1;
+            }
+            if (x >= 3) {
+                return 0;
+            }
+            double px = Math.PI * x;
+            return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+        }
+
+        // Catmull-Rom cubic (Keys, a = -0.5)
+        if (x < 1) {
+            return (1.5 * x - 2.5) * x * x + 1;
+        }
+        if (x < 2) {
+            return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the table for an axis, reusing a cached one where possible
+     *
+     * @param filter  Interpolation style, BICUBIC or LANCZOS3
+     * @param srcSize Number of source pixels along the axis
+     * @param dstSize Number of destination pixels along the axis
+     * @return Weight table
+     */
+    static WeightTable table(Interpolation filter, int srcSize, int dstSize) {
+        TableKey key = new TableKey(filter, srcSize, dstSize);
+        synchronized (cache) {
+            return cache.computeIfAbsent(key, k -> new WeightTable(filter, srcSize, dstSize));
+        }
+    }
+
+    /**
+     * Resizes a raster with a separable filter
+     *
+     * @param source    Raster to resize
+     * @param newWidth  Width of the resized raster
+     * @param newHeight Height of the resized raster
+     * @param filter    Interpolation style, BICUBIC or LANCZOS3
+     * @param lut       Lookup-table applied to the output, or null for none
+     * @return Resized raster
+     */
+    public static Raster resize(Raster source, int newWidth, int newHeight, Interpolation filter, GammaLut lut) {
+        return resize(source, newWidth, newHeight, filter, lut, 0, 0, newWidth, newHeight);
+    }
+
+    /**
+     * Resizes a raster with a separable filter, but only works out one rectangle of the result
+     *
+     * @param source       Raster to resize
+     * @param newWidth     Width of the whole resized raster
+     * @param newHeight    Height of the whole resized raster
+     * @param filter       Interpolation style, BICUBIC or LANCZOS3
+     * @param lut          Lookup-table applied to the output, or null for none
+     * @param x            Left of the rectangle
+     * @param y            Top of the rectangle
+     * @param regionWidth  Width of the rectangle
+     * @param regionHeight Height of the rectangle
+     * @return Resized rectangle
+     */
+    public static Raster resize(Raster source, int newWidth, int newHeight, Interpolation filter, GammaLut lut,
+                                int x, int y, int regionWidth, int regionHeight) {
+        Raster resized = RasterPool.getDefault().acquireRaster(regionWidth, regionHeight);
+        if (regionWidth == 0 || regionHeight == 0) {
+            return resized;
+        }
+
+        WeightTable columns = table(filter, source.width, newWidth);
+        WeightTable rows = table(filter, source.height, newHeight);
+
+        TileScheduler.getDefault().forEachBand(regionWidth, regionHeight, (startRow, endRow) ->
+                resizeBand(source, resized, columns, rows, lut, x, y, startRow, endRow));
+        return resized;
+    }
+
+    /**
+     * Resizes one band of destination rows
+     *
+     * @param source   Raster being resized
+     * @param resized  Raster being written
+     * @param columns  Table for the x axis
+     * @param rows     Table for the y axis
+     * @param lut      Lookup-table applied to the output, or null for none
+     * @param x        Column of the whole resized raster that the region starts at
+     * @param y        Row of the whole resized raster that the region starts at
+     * @param startRow First row of the band, within the region
+     * @param endRow   Row after the last row of the band, within the region
+     */
+    private static void resizeBand(Raster source, Raster resized, WeightTable columns, WeightTable rows,
+                                   GammaLut lut, int x, int y, int startRow, int endRow) {
+        Window window = new Window(rows.taps, resized.width);
+        for (int row = startRow; row < endRow; row++) {
+
+            // Makes sure every source row under this output row's taps is horizontally filtered
+            for (int t = 0; t < rows.taps; t++) {
+                int srcRow = rows.index[(y + row) * rows.taps + t];
+                if (!window.holds(srcRow)) {
+                    horizontalRow(source.pixels, srcRow * source.width, columns, x, window.load(srcRow), resized.width);
+                }
+            }
+            verticalRow(window, rows, y + row, resized.pixels, row * resized.width, lut);
+        }
+    }
+
+    /**
+     * Rolling window of horizontally filtered source rows, source row r kept in slot r % taps.
+     * Taps are consecutive source rows (clamped at the edges), so a column of them never
+     * needs two rows in the same slot.
+     */
+    static final class Window {
+
+        /**
+         * Filtered rows, alpha/red/green/blue planes one after the other, with INTERMEDIATE_BITS of fraction
+         */
+        final int[][] rows;
+
+        /**
+         * Vertical sums of the output row being combined, laid out like the filtered rows
+         */
+        final int[] sums;
+
+        /**
+         * Source row held by each slot, or -1
+         */
+        private final int[] held;
+
+        /**
+         * Width of each filtered row
+         */
+        final int width;
+
+        /**
+         * @param taps  Number of taps per output row
+         * @param width Width of the output
+         */
+        Window(int taps, int width) {
+            this.rows = new int[taps][4 * width];
+            this.sums = new int[4 * width];
+            this.held = new int[taps];
+            this.width = width;
+            Arrays.fill(held, -1);
+        }
+
+        /**
+         * @param srcRow Source row
+         * @return Whether the row is already filtered
+         */
+        boolean holds(int srcRow) {
+            return held[srcRow % held.length] == srcRow;
+        }
+
+        /**
+         * @param srcRow Source row about to be filtered
+         * @return Buffer to filter it into
+         */
+        int[] load(int srcRow) {
+            int slot = srcRow % held.length;
+            held[slot] = srcRow;
+            return rows[slot];
+        }
+
+        /**
+         * @param srcRow Source row, which must be held
+         * @return Its filtered values
+         */
+        int[] row(int srcRow) {
+            return rows[srcRow % held.length];
+        }
+    }
+
+    /**
+     * Horizontally filters a row of packed pixels into alpha/red/green/blue planes,
+     * with INTERMEDIATE_BITS of fraction
+     *
+     * @param src       Source pixels
+     * @param rowOffset Index of the row's first pixel
+     * @param columns   Table for the x axis
+     * @param first     First column of the table used
+     * @param out       Planes out, 4 x width
+     * @param width     Number of columns filtered
+     */
+    static void horizontalRow(int[] src, int rowOffset, WeightTable columns, int first, int[] out, int width) {
+        int taps = columns.taps;
+        int[] index = columns.index, weight = columns.weight;
+        int shift = WEIGHT_BITS - INTERMEDIATE_BITS;
+        int rounding = 1 << (shift - 1);
+
+        for (int x = 0; x < width; x++) {
+            int a = 0, r = 0, g = 0, b = 0;
+            for (int t = (first + x) * taps; t < (first + x + 1) * taps; t++) {
+                int pixel = src[rowOffset + index[t]];
+                int w = weight[t];
+                a += w * (pixel >>> 24);
+                r += w * ((pixel >>> 16) & 0xFF);
+                g += w * ((pixel >>> 8) & 0xFF);
+                b += w * (pixel & 0xFF);
+            }
+            out[x] = (a + rounding) >> shift;
+            out[width + x] = (r + rounding) >> shift;
+            out[2 * width + x] = (g + rounding) >> shift;
+            out[3 * width + x] = (b + rounding) >> shift;
+        }
+    }
+
+    /**
+     * Vertically combines filtered rows from the window into a row of packed pixels
+     *
+     * @param window    Window holding every source row under the output row's taps
+     * @param rows      Table for the y axis
+     * @param y         Output row
+     * @param dst       Pixels written to, the window's width of them
+     * @param outOffset Index of the first pixel written
+     * @param lut       Lookup-table applied to the output, or null for none
+     */
+    static void verticalRow(Window window, WeightTable rows, int y, int[] dst, int outOffset, GammaLut lut) {
+        int width = window.width;
+        int taps = rows.taps;
+        int shift = WEIGHT_BITS + INTERMEDIATE_BITS;
+        int rounding = 1 << (shift - 1);
+
+        // Sums the taps a plane at a time, so each tap's row is read in order
+        int[] sums = window.sums;
+        Arrays.fill(sums, 0);
+        for (int t = 0; t < taps; t++) {
+            int w = rows.weight[y * taps + t];
+            int[] row = window.row(rows.index[y * taps + t]);
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += w * row[i];
+            }
+        }
+
+        for (int x = 0; x < width; x++) {
+            int a = clamp((sums[x] + rounding) >> shift);
+            int r = clamp((sums[width + x] + rounding) >> shift);
+            int g = clamp((sums[2 * width + x] + rounding) >> shift);
+            int b = clamp((sums[3 * width + x] + rounding) >> shift);
+            int pixel = (a << 24) | (r << 16) | (g << 8) | b;
+            dst[outOffset + x] = lut == null ? pixel : lut.apply(pixel);
+        }
+    }
+
+    /**
+     * @param value Filtered channel value, possibly overshooting
+     * @return Value clamped to 0-255
+     */
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,25 @@
+package me.ewanl.cw255;
+
+/**
+ * Decides once, at startup, whether the kernels use the Vector API versions in VectorKernels.
+ *
+ * jdk.incubator.vector is only present when the JVM is started with
+ * --add-modules jdk.incubator.vector, so this class must not touch VectorKernels itself;
+ * the scalar kernels stay as the fallback. -Dcw255.simd=false turns the SIMD kernels off.
+ */
+final class Simd {
+
+    /**
+     * Whether the SIMD kernels are used
+     */
+    static final boolean ENABLED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !"false".equals(System.getProperty("cw255.simd"));
+
+    /**
+     * Runs shorter than this are left to the scalar kernels, as the vector set-up costs more than it saves
+     */
+    static final int MIN_LENGTH = 32;
+
+    private Simd() {
+    }
+}
@@ -0,0 +1,172 @@
+package me.ewanl.cw255;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-bounded cache of the rasters produced by each stage of a pipeline.
+ *
+ * Entries are evicted least recently used first, once the total size of the cached
+ * pixels would go over the limit. Keys are whatever identifies the stage's output,
+ * usually its parent stage's key plus its own parameters.
+ */
+public final class StageCache {
+
+    /**
+     * Most bytes of pixels held at once
+     */
+    private final long maxBytes;
+
+    /**
+     * Cached rasters, least recently used first
+     */
+    private final LinkedHashMap<Object, Raster> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Bytes of pixels currently held
+     */
+    private long bytes;
+
+    /**
+     * Number of lookups that found a raster
+     */
+    private long hits;
+
+    /**
+     * Number of lookups that found nothing
+     */
+    private long misses;
+
+    /**
+     * Number of rasters removed to make room
+     */
+    private long evictions;
+
+    /**
+     * @param maxBytes Most bytes of pixels held at once
+     */
+    public StageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a raster, marking it as most recently used
+     *
+     * @param key Key of the stage
+     * @return Cached raster, or null if there isn't one
+     */
+    public synchronized Raster get(Object key) {
+        Raster raster = entries.get(key);
+        if (raster == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return raster;
+    }
+
+    /**
+     * Caches a raster, evicting the least recently used ones until it fits.
+     * Rasters bigger than the whole cache are not kept.
+     *
+     * @param key    Key of the stage
+     * @param raster Raster the stage produced
+     */
+    public synchronized void put(Object key, Raster raster) {
+        long size = sizeOf(raster);
+        if (size > maxBytes) {
+            return;
+        }
+
+        Raster old = entries.put(key, raster);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += size;
+
+        // Evicts from the least recently used end, never the entry just added
+        Iterator<Map.Entry<Object, Raster>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Object, Raster> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            bytes -= sizeOf(eldest.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every raster, keeping the counters
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param raster Raster to measure
+     * @return Bytes of pixels it holds
+     */
+    private static long sizeOf(Raster raster) {
+        return (long) raster.pixels.length * Integer.BYTES;
+    }
+
+    /**
+     * @return Most bytes of pixels held at once
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Bytes of pixels currently held
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of rasters currently held
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Number of lookups that found a raster
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups that found nothing
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of rasters removed to make room
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Fraction of lookups that found a raster, 0 if there have been none
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %.1f/%.1f MB, %d hits, %d misses, %d evictions",
+                entries.size(), bytes / 1048576.0, maxBytes / 1048576.0, hits, misses, evictions);
+    }
+}
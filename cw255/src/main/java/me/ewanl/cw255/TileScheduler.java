@@ -0,0 +1,270 @@
+package me.ewanl.cw255;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Splits an output image into horizontal bands of rows and runs a kernel over them,
+ * either on a fork/join pool or one after another on the calling thread. Kernels
+ * must only write the rows of their own band, so both modes give identical output.
+ * The calling thread's CancellationToken is checked before each band.
+ *
+ * The default scheduler's parallelism can be set with the system property
+ * "cw255.parallelism", and "cw255.sequential=true" forces sequential mode.
+ */
+public final class TileScheduler {
+
+    /**
+     * Approximate number of pixels in each band
+     */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    /**
+     * Scheduler used by the image operations
+     */
+    private static volatile TileScheduler defaultScheduler = new TileScheduler(
+            Integer.getInteger("cw255.parallelism", Runtime.getRuntime().availableProcessors()),
+            Boolean.getBoolean("cw255.sequential"));
+
+    /**
+     * Pool the bands run on
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Whether bands are run one after another on the calling thread
+     */
+    private final boolean sequential;
+
+    /**
+     * Kernel run over one band of rows
+     */
+    @FunctionalInterface
+    public interface BandTask {
+
+        /**
+         * @param startRow First row of the band
+         * @param endRow   Row after the last row of the band
+         */
+        void run(int startRow, int endRow);
+    }
+
+    /**
+     * Kernel run over one band of rows, giving a partial result to be combined
+     *
+     * @param <T> Type of partial result
+     */
+    @FunctionalInterface
+    public interface BandFunction<T> {
+
+        /**
+         * @param startRow First row of the band
+         * @param endRow   Row after the last row of the band
+         * @return Result for the band
+         */
+        T apply(int startRow, int endRow);
+    }
+
+    /**
+     * Creates a scheduler with its own pool
+     *
+     * @param parallelism Number of worker threads
+     * @param sequential  Whether to ignore the pool and run bands on the calling thread
+     */
+    public TileScheduler(int parallelism, boolean sequential) {
+        this.pool = sequential ? null : new ForkJoinPool(Math.max(1, parallelism));
+        this.sequential = sequential;
+    }
+
+    /**
+     * @return Scheduler used by the image operations
+     */
+    public static TileScheduler getDefault() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Replaces the scheduler used by the image operations, shutting down the old one
+     *
+     * @param parallelism Number of worker threads
+     * @param sequential  Whether to run bands on the calling thread
+     */
+    public static void configure(int parallelism, boolean sequential) {
+        TileScheduler old = defaultScheduler;
+        defaultScheduler = new TileScheduler(parallelism, sequential);
+        if (old.pool != null) {
+            old.pool.shutdown();
+        }
+    }
+
+    /**
+     * @return Whether bands are run one after another on the calling thread
+     */
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    /**
+     * @return Number of worker threads, 1 when sequential
+     */
+    public int getParallelism() {
+        return sequential ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * Runs a kernel over every band of rows, returning once all have finished
+     *
+     * @param width  Width of the output, used to size the bands
+     * @param height Number of output rows
+     * @param task   Kernel to run over each band
+     */
+    public void forEachBand(int width, int height, BandTask task) {
+        CancellationToken token = CancellationToken.current();
+        BandTask checked = (startRow, endRow) -> {
+            token.throwIfCancelled();
+            task.run(startRow, endRow);
+        };
+
+        int bandHeight = bandHeight(width);
+        if (sequential || height <= bandHeight) {
+            for (int start = 0; start < height; start += bandHeight) {
+                checked.run(start, Math.min(height, start + bandHeight));
+            }
+        } else {
+            pool.invoke(new BandAction(checked, 0, height, bandHeight));
+        }
+    }
+
+    /**
+     * Runs a kernel over every band of rows and combines their results
+     *
+     * @param width    Width of the output, used to size the bands
+     * @param height   Number of output rows
+     * @param function Kernel to run over each band
+     * @param combiner Associative function merging two partial results
+     * @param <T>      Type of result
+     * @return Combined result of every band
+     */
+    public <T> T reduceBands(int width, int height, BandFunction<T> function, BinaryOperator<T> combiner) {
+        return reduce(bandHeight(width), height, function, combiner);
+    }
+
+    /**
+     * Runs a kernel over every band of rows of a set height and combines their results,
+     * for kernels that work in blocks of rows
+     *
+     * @param bandHeight Number of rows in each band, except perhaps the last
+     * @param height     Number of output rows
+     * @param function   Kernel to run over each band
+     * @param combiner   Associative function merging two partial results
+     * @param <T>        Type of result
+     * @return Combined result of every band
+     */
+    public <T> T reduceFixedBands(int bandHeight, int height, BandFunction<T> function, BinaryOperator<T> combiner) {
+        return reduce(Math.max(1, bandHeight), height, function, combiner);
+    }
+
+    /**
+     * Runs a kernel over every band of rows, checking for cancellation first, and combines their results
+     *
+     * @param bandHeight Number of rows in each band
+     * @param height     Number of output rows
+     * @param function   Kernel to run over each band
+     * @param combiner   Associative function merging two partial results
+     * @param <T>        Type of result
+     * @return Combined result of every band
+     */
+    private <T> T reduce(int bandHeight, int height, BandFunction<T> function, BinaryOperator<T> combiner) {
+        CancellationToken token = CancellationToken.current();
+        BandFunction<T> checked = (startRow, endRow) -> {
+            token.throwIfCancelled();
+            return function.apply(startRow, endRow);
+        };
+
+        if (sequential || height <= bandHeight) {
+            T result = checked.apply(0, Math.min(height, bandHeight));
+            for (int start = bandHeight; start < height; start += bandHeight) {
+                result = combiner.apply(result, checked.apply(start, Math.min(height, start + bandHeight)));
+            }
+            return result;
+        }
+        return pool.invoke(new BandReduction<>(checked, combiner, 0, height, bandHeight));
+    }
+
+    /**
+     * @param width Width of the output
+     * @return Number of rows in each band
+     */
+    private static int bandHeight(int width) {
+        return Math.max(1, PIXELS_PER_BAND / Math.max(1, width));
+    }
+
+    /**
+     * Halves its range of rows until it is a single band, then runs the kernel on it
+     */
+    private static final class BandAction extends RecursiveAction {
+
+        private final BandTask task;
+        private final int startRow;
+        private final int endRow;
+        private final int bandHeight;
+
+        BandAction(BandTask task, int startRow, int endRow, int bandHeight) {
+            this.task = task;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandHeight) {
+                task.run(startRow, endRow);
+                return;
+            }
+
+            // Splits on a band boundary, so bands match the sequential mode
+            int bands = (endRow - startRow + bandHeight - 1) / bandHeight;
+            int middle = startRow + (bands / 2) * bandHeight;
+            invokeAll(new BandAction(task, startRow, middle, bandHeight),
+                    new BandAction(task, middle, endRow, bandHeight));
+        }
+    }
+
+    /**
+     * Halves its range of rows until it is a single band, then combines the results in row order
+     */
+    private static final class BandReduction<T> extends RecursiveTask<T> {
+
+        private final BandFunction<T> function;
+        private final BinaryOperator<T> combiner;
+        private final int startRow;
+        private final int endRow;
+        private final int bandHeight;
+
+        BandReduction(BandFunction<T> function, BinaryOperator<T> combiner, int startRow, int endRow, int bandHeight) {
+            this.function = function;
+            this.combiner = combiner;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected T compute() {
+            if (endRow - startRow <= bandHeight) {
+                return function.apply(startRow, endRow);
+            }
+
+            int bands = (endRow - startRow + bandHeight - 1) / bandHeight;
+            int middle = startRow + (bands / 2) * bandHeight;
+            BandReduction<T> top = new BandReduction<>(function, combiner, startRow, middle, bandHeight);
+            BandReduction<T> bottom = new BandReduction<>(function, combiner, middle, endRow, bandHeight);
+            bottom.fork();
+            T topResult = top.compute();
+            return combiner.apply(topResult, bottom.join());
+        }
+    }
+}
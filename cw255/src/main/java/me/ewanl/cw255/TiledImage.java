@@ -0,0 +1,159 @@
+package me.ewanl.cw255;
+
+/**
+ * Result of a pipeline split into square tiles, each only rendered when it's asked for.
+ *
+ * Tiles are worked out with Pipeline.buildRegion, so an enlarged image never exists in
+ * full: only the tiles on screen (plus a margin) are resized, and each is kept in a
+ * bounded cache so panning back over them doesn't redo them. Tiles along the right and
+ * bottom edges are cut short to fit the image.
+ */
+public final class TiledImage {
+
+    /**
+     * Width and height of a tile, in pixels
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Pipeline producing the whole image
+     */
+    private final Pipeline pipeline;
+
+    /**
+     * Identifies the image in tile keys
+     */
+    private final Object key;
+
+    /**
+     * Width of the whole image, in pixels
+     */
+    private final int width;
+
+    /**
+     * Height of the whole image, in pixels
+     */
+    private final int height;
+
+    /**
+     * Rendered tiles, shared between images
+     */
+    private final StageCache tiles;
+
+    /**
+     * Cache key of one tile
+     *
+     * @param image  Key of the image the tile is from
+     * @param column Column of the tile
+     * @param row    Row of the tile
+     */
+    private record TileKey(Object image, int column, int row) {
+    }
+
+    /**
+     * Block of tiles, inclusive at both ends, empty if a last index is less than its first
+     *
+     * @param firstColumn Leftmost column
+     * @param firstRow    Top row
+     * @param lastColumn  Rightmost column
+     * @param lastRow     Bottom row
+     */
+    public record Range(int firstColumn, int firstRow, int lastColumn, int lastRow) {
+
+        /**
+         * @param column Column of a tile
+         * @param row    Row of a tile
+         * @return Whether the tile is in the block
+         */
+        public boolean contains(int column, int row) {
+            return column >= firstColumn && column <= lastColumn && row >= firstRow && row <= lastRow;
+        }
+    }
+
+    /**
+     * @param pipeline Pipeline producing the whole image, not changed afterwards
+     * @param tiles    Cache the rendered tiles are kept in
+     */
+    public TiledImage(Pipeline pipeline, StageCache tiles) {
+        this.pipeline = pipeline;
+        this.key = pipeline.getKey();
+        this.width = pipeline.getWidth();
+        this.height = pipeline.getHeight();
+        this.tiles = tiles;
+    }
+
+    /**
+     * Gets a tile, rendering and caching it if it isn't cached
+     *
+     * @param column Column of the tile
+     * @param row    Row of the tile
+     * @return Pixels of the tile, TILE_SIZE square unless on the right or bottom edge
+     */
+    public Raster tile(int column, int row) {
+        TileKey tileKey = new TileKey(key, column, row);
+        Raster tile = tiles.get(tileKey);
+        if (tile == null) {
+            int x = column * TILE_SIZE;
+            int y = row * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, width - x);
+            int tileHeight = Math.min(TILE_SIZE, height - y);
+
+            tile = Instrumentation.measure("tile", tileWidth, tileHeight,
+                    () -> pipeline.buildRegion(x, y, tileWidth, tileHeight));
+            tiles.put(tileKey, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Works out which tiles a rectangle of the image touches
+     *
+     * @param x      Left of the rectangle, may be outside the image
+     * @param y      Top of the rectangle, may be outside the image
+     * @param width  Width of the rectangle
+     * @param height Height of the rectangle
+     * @return Tiles overlapping both the rectangle and the image
+     */
+    public Range tilesCovering(double x, double y, double width, double height) {
+        return new Range(
+                Math.max(0, (int) Math.floor(x / TILE_SIZE)),
+                Math.max(0, (int) Math.floor(y / TILE_SIZE)),
+                Math.min(getColumns() - 1, (int) Math.ceil((x + width) / TILE_SIZE) - 1),
+                Math.min(getRows() - 1, (int) Math.ceil((y + height) / TILE_SIZE) - 1));
+    }
+
+    /**
+     * @return Key identifying the image: its pipeline's key
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return Width of the whole image, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the whole image, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Number of columns of tiles
+     */
+    public int getColumns() {
+        return (width + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * @return Number of rows of tiles
+     */
+    public int getRows() {
+        return (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+}
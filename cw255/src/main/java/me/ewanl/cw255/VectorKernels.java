@@ -0,0 +1,296 @@
+package me.ewanl.cw255;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * Vector API versions of the innermost kernel loops, giving identical output to the scalar
+ * loops they replace. Only loaded when Simd.ENABLED, as jdk.incubator.vector may be missing.
+ *
+ * Each method handles whole vectors and finishes the tail with the same scalar arithmetic.
+ */
+final class VectorKernels {
+
+    /**
+     * Widest int vectors the CPU supports
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Widest long vectors the CPU supports
+     */
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * Int vectors with as many lanes as LONGS, for packing blended pixels
+     */
+    private static final VectorSpecies<Integer> PACKED_INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+
+    /**
+     * Fixed-point weight representing 1.0, as in BilinearResampler
+     */
+    private static final int ONE = 256;
+
+    /**
+     * Mask of the two 8-bit channels in each half of an unpacked pixel
+     */
+    private static final long CHANNEL_MASK = 0x000000FF_000000FFL;
+
+    /**
+     * Half of the final 16.16 divisor in each lane, for rounding to nearest
+     */
+    private static final long ROUNDING = 0x00008000_00008000L;
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return Number of ints in the widest vectors the CPU supports
+     */
+    static int intLanes() {
+        return INTS.length();
+    }
+
+    /**
+     * Gamma-corrects a run of packed pixels, gathering each channel's new value from the table
+     *
+     * @param table     Output channel value for each input channel value
+     * @param src       Source pixels
+     * @param srcOffset Index of the first source pixel
+     * @param dst       Destination pixels, may be the same array as src
+     * @param dstOffset Index of the first destination pixel
+     * @param length    Number of pixels
+     */
+    static void applyLut(int[] table, int[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        int lanes = INTS.length();
+        int[] red = new int[lanes], green = new int[lanes], blue = new int[lanes];
+
+        int p = 0;
+        for (int bound = INTS.loopBound(length); p < bound; p += lanes) {
+            IntVector argb = IntVector.fromArray(INTS, src, srcOffset + p);
+
+            // Gathers take their indices from an array, so each channel is unpacked into one first
+            argb.lanewise(VectorOperators.LSHR, 16).and(0xFF).intoArray(red, 0);
+            argb.lanewise(VectorOperators.LSHR, 8).and(0xFF).intoArray(green, 0);
+            argb.and(0xFF).intoArray(blue, 0);
+
+            argb.and(0xFF000000)
+                    .or(IntVector.fromArray(INTS, table, 0, red, 0).lanewise(VectorOperators.LSHL, 16))
+                    .or(IntVector.fromArray(INTS, table, 0, green, 0).lanewise(VectorOperators.LSHL, 8))
+                    .or(IntVector.fromArray(INTS, table, 0, blue, 0))
+                    .intoArray(dst, dstOffset + p);
+        }
+        for (; p < length; p++) {
+            int argb = src[srcOffset + p];
+            dst[dstOffset + p] = (argb & 0xFF000000)
+                    | table[(argb >>> 16) & 0xFF] << 16
+                    | table[(argb >>> 8) & 0xFF] << 8
+                    | table[argb & 0xFF];
+        }
+    }
+
+    /**
+     * Blends two horizontally interpolated rows into a row of packed pixels,
+     * as BilinearResampler.blendRows
+     *
+     * @param topRB     Red/blue lanes of the upper row
+     * @param topAG     Alpha/green lanes of the upper row
+     * @param bottomRB  Red/blue lanes of the lower row
+     * @param bottomAG  Alpha/green lanes of the lower row
+     * @param wy        Weight of the lower row, out of ONE
+     * @param dst       Pixels written to, topRB.length of them
+     * @param outOffset Index of the first pixel written
+     */
+    static void blendRows(long[] topRB, long[] topAG, long[] bottomRB, long[] bottomAG, int wy,
+                          int[] dst, int outOffset) {
+        int width = topRB.length;
+        int wy2 = ONE - wy;
+
+        int x = 0;
+        for (int bound = LONGS.loopBound(width); x < bound; x += LONGS.length()) {
+            LongVector rb = LongVector.fromArray(LONGS, topRB, x).mul(wy2)
+                    .add(LongVector.fromArray(LONGS, bottomRB, x).mul(wy))
+                    .add(ROUNDING)
+                    .lanewise(VectorOperators.LSHR, 16).and(CHANNEL_MASK);
+            LongVector ag = LongVector.fromArray(LONGS, topAG, x).mul(wy2)
+                    .add(LongVector.fromArray(LONGS, bottomAG, x).mul(wy))
+                    .add(ROUNDING)
+                    .lanewise(VectorOperators.LSHR, 16).and(CHANNEL_MASK);
+
+            // Folds each pair of lanes into the low 32 bits, then narrows to one int per pixel
+            LongVector packed = rb.or(rb.lanewise(VectorOperators.LSHR, 16)).and(0x00FF00FFL)
+                    .or(ag.or(ag.lanewise(VectorOperators.LSHR, 16)).and(0x00FF00FFL).lanewise(VectorOperators.LSHL, 8));
+            packed.convertShape(VectorOperators.L2I, PACKED_INTS, 0).reinterpretAsInts()
+                    .intoArray(dst, outOffset + x);
+        }
+        for (; x < width; x++) {
+            long rb = (topRB[x] * wy2 + bottomRB[x] * wy + ROUNDING) >>> 16 & CHANNEL_MASK;
+            long ag = (topAG[x] * wy2 + bottomAG[x] * wy + ROUNDING) >>> 16 & CHANNEL_MASK;
+            dst[outOffset + x] = (int) (rb | (rb >>> 16)) & 0x00FF00FF
+                    | ((int) (ag | (ag >>> 16)) & 0x00FF00FF) << 8;
+        }
+    }
+
+    /**
+     * Correlates a kernel with a window of unpacked rows, as ConvolutionEngine.correlateRow.
+     * Every weight of the kernel is summed into one vector of responses before it's stored,
+     * rather than passing over the whole row once per weight.
+     *
+     * @param kernel      Kernel to correlate with
+     * @param windowRed   Red rows of the window
+     * @param windowGreen Green rows of the window
+     * @param windowBlue  Blue rows of the window
+     * @param topRow      Source row under the kernel's top row, held in slot topRow % kernel height
+     * @param red         Red responses out
+     * @param green       Green responses out
+     * @param blue        Blue responses out
+     * @param outOffset   Index of the first response written
+     * @param outWidth    Number of responses written
+     */
+    static void correlateRow(Kernel kernel, int[][] windowRed, int[][] windowGreen, int[][] windowBlue, int topRow,
+                             int[] red, int[] green, int[] blue, int outOffset, int outWidth) {
+        int kernelHeight = kernel.height;
+
+        // Window rows in kernel order, so each tap is a fixed row and column offset
+        int[][] rowsRed = new int[kernelHeight][], rowsGreen = new int[kernelHeight][], rowsBlue = new int[kernelHeight][];
+        for (int ky = 0; ky < kernelHeight; ky++) {
+            int windowSlot = (topRow + ky) % kernelHeight;
+            rowsRed[ky] = windowRed[windowSlot];
+            rowsGreen[ky] = windowGreen[windowSlot];
+            rowsBlue[ky] = windowBlue[windowSlot];
+        }
+
+        correlatePlane(kernel, rowsRed, red, outOffset, outWidth);
+        correlatePlane(kernel, rowsGreen, green, outOffset, outWidth);
+        correlatePlane(kernel, rowsBlue, blue, outOffset, outWidth);
+    }
+
+    /**
+     * Correlates a kernel with one channel of the window
+     *
+     * @param kernel    Kernel to correlate with
+     * @param rows      Rows of the channel, in kernel order
+     * @param out       Responses out
+     * @param outOffset Index of the first response written
+     * @param outWidth  Number of responses written
+     */
+    private static void correlatePlane(Kernel kernel, int[][] rows, int[] out, int outOffset, int outWidth) {
+        int kernelWidth = kernel.width;
+        int kernelHeight = kernel.height;
+        int[] weights = kernel.weights;
+
+        int bound = INTS.loopBound(outWidth);
+        boolean first = true;
+        for (int ky = 0; ky < kernelHeight; ky++) {
+            int[] row = rows[ky];
+            for (int kx = 0; kx < kernelWidth; kx++) {
+                int weight = weights[ky * kernelWidth + kx];
+                if (weight == 0) {
+                    continue;
+                }
+                if (first) {
+                    for (int x = 0; x < bound; x += INTS.length()) {
+                        IntVector.fromArray(INTS, row, x + kx).mul(weight).intoArray(out, outOffset + x);
+                    }
+                    first = false;
+                } else {
+                    for (int x = 0; x < bound; x += INTS.length()) {
+                        IntVector.fromArray(INTS, row, x + kx).mul(weight)
+                                .add(IntVector.fromArray(INTS, out, outOffset + x)).intoArray(out, outOffset + x);
+                    }
+                }
+            }
+        }
+        if (first) {
+            Arrays.fill(out, outOffset, outOffset + bound, 0);
+        }
+        int x = bound;
+        for (; x < outWidth; x++) {
+            int sum = 0;
+            for (int ky = 0; ky < kernelHeight; ky++) {
+                for (int kx = 0; kx < kernelWidth; kx++) {
+                    sum += weights[ky * kernelWidth + kx] * rows[ky][x + kx];
+                }
+            }
+            out[outOffset + x] = sum;
+        }
+    }
+
+    /**
+     * Unpacks a row of packed pixels into separate red, green, and blue rows,
+     * as ConvolutionEngine.unpackRow
+     *
+     * @param src    Source pixels
+     * @param offset Index of the row's first pixel
+     * @param red    Red values out
+     * @param green  Green values out
+     * @param blue   Blue values out
+     */
+    static void unpackRow(int[] src, int offset, int[] red, int[] green, int[] blue) {
+        int width = red.length;
+        int x = 0;
+        for (int bound = INTS.loopBound(width); x < bound; x += INTS.length()) {
+            IntVector argb = IntVector.fromArray(INTS, src, offset + x);
+            argb.lanewise(VectorOperators.LSHR, 16).and(0xFF).intoArray(red, x);
+            argb.lanewise(VectorOperators.LSHR, 8).and(0xFF).intoArray(green, x);
+            argb.and(0xFF).intoArray(blue, x);
+        }
+        for (; x < width; x++) {
+            int argb = src[offset + x];
+            red[x] = (argb >>> 16) & 0xFF;
+            green[x] = (argb >>> 8) & 0xFF;
+            blue[x] = argb & 0xFF;
+        }
+    }
+
+    /**
+     * Adjusts the min/max values as/if needed to take in a run of responses,
+     * as ConvolutionEngine.widenRange
+     *
+     * @param range Min/max to widen, as [minR, maxR, minG, maxG, minB, maxB]
+     * @param red   Red responses
+     * @param green Green responses
+     * @param blue  Blue responses
+     * @param from  Index of the first response
+     * @param to    Index after the last response
+     */
+    static void widenRange(int[] range, int[] red, int[] green, int[] blue, int from, int to) {
+        widenChannel(range, 0, red, from, to);
+        widenChannel(range, 2, green, from, to);
+        widenChannel(range, 4, blue, from, to);
+    }
+
+    /**
+     * @param range  Min/max to widen
+     * @param index  Index of the channel's min within range
+     * @param values Responses of the channel
+     * @param from   Index of the first response
+     * @param to     Index after the last response
+     */
+    private static void widenChannel(int[] range, int index, int[] values, int from, int to) {
+        IntVector min = IntVector.broadcast(INTS, range[index]);
+        IntVector max = IntVector.broadcast(INTS, range[index + 1]);
+
+        int x = from;
+        for (int bound = from + INTS.loopBound(to - from); x < bound; x += INTS.length()) {
+            IntVector v = IntVector.fromArray(INTS, values, x);
+            min = min.min(v);
+            max = max.max(v);
+        }
+
+        int lo = min.reduceLanes(VectorOperators.MIN);
+        int hi = max.reduceLanes(VectorOperators.MAX);
+        for (; x < to; x++) {
+            lo = Math.min(lo, values[x]);
+            hi = Math.max(hi, values[x]);
+        }
+        range[index] = lo;
+        range[index + 1] = hi;
+    }
+}
@@ -0,0 +1,395 @@
+package me.ewanl.cw255.cli;
+
+import me.ewanl.cw255.Pipeline;
+import me.ewanl.cw255.Raster;
+import me.ewanl.cw255.RasterPool;
+import me.ewanl.cw255.TileScheduler;
+import me.ewanl.cw255.io.ImageFiles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch processor running the gamma / resize / laplacian operations over many files.
+ *
+ * Decoding, transforming, and encoding are separate stages joined by bounded queues, so a
+ * slow stage holds the others back rather than filling the heap. Decoders and encoders are
+ * virtual threads, as they mostly wait on the disk; transforms run on one platform thread
+ * per core.
+ *
+ * Every output is named before any image is read: inputs sharing a base name, e.g.
+ * photo.png and photo.jpg, are given a numbered suffix rather than writing the same
+ * file, and no output is ever named the same as an input.
+ *
+ * <pre>
+ * java -cp ... me.ewanl.cw255.cli.Batch --ops laplace,resize=0.5:bilinear,gamma=2.2 --out out/ photos/
+ * </pre>
+ */
+public final class Batch {
+
+    /**
+     * Usage message printed on bad arguments
+     */
+    private static final String USAGE = """
+            Usage: Batch --ops <steps> --out <dir> [options] <file | dir | @list>...
+              --ops <steps>    Comma-separated steps, run in order:
+                                 laplace | kernel=<name> | resize=<scale>[:nn|:bilinear|:bicubic|:lanczos3] | gamma=<value>
+                               Kernels: laplacian, edge, sharpen, sobel-x, box-blur, gaussian-blur, disc-blur
+              --out <dir>      Directory the results are written to
+              --format <name>  Output format, default png
+              --queue <n>      Images held between stages, default 16
+              --io <n>         Decoder and encoder threads each, default 8
+            A @list argument is a text file with one input path per line.""";
+
+    /**
+     * File extensions picked up when a directory is given
+     */
+    private static final List<String> IMAGE_EXTENSIONS = List.of("png", "jpg", "jpeg", "bmp", "gif");
+
+    /**
+     * Image passed between stages
+     *
+     * @param input  File the image came from
+     * @param output File the image is written to, reserved for it alone
+     * @param raster Pixels of the image, or null until it's decoded
+     */
+    private record Job(Path input, Path output, Raster raster) {
+    }
+
+    /**
+     * Marks the end of a queue
+     */
+    private static final Job END = new Job(null, null, null);
+
+    /**
+     * Number of images written
+     */
+    private final AtomicLong images = new AtomicLong();
+
+    /**
+     * Number of images that failed at any stage
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Bytes of input files read
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Bytes of output files written
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final OperationSpec operations;
+    private final Path outDir;
+    private final String format;
+    private final int queueSize;
+    private final int ioThreads;
+
+    private Batch(OperationSpec operations, Path outDir, String format, int queueSize, int ioThreads) {
+        this.operations = operations;
+        this.outDir = outDir;
+        this.format = format;
+        this.queueSize = queueSize;
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Runs the batch
+     *
+     * @param args Command-line arguments, see USAGE
+     * @throws Exception If the inputs can't be listed or a stage is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        OperationSpec operations = null;
+        Path outDir = null;
+        String format = "png";
+        int queueSize = 16;
+        int ioThreads = 8;
+        List<Path> inputs = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--ops" -> operations = OperationSpec.parse(args[++i]);
+                    case "--out" -> outDir = Path.of(args[++i]);
+                    case "--format" -> format = args[++i];
+                    case "--queue" -> queueSize = Integer.parseInt(args[++i]);
+                    case "--io" -> ioThreads = Integer.parseInt(args[++i]);
+                    default -> collectInputs(args[i], inputs);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? USAGE : e.getMessage() + "\n" + USAGE);
+            System.exit(2);
+        }
+        if (operations == null || outDir == null || inputs.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Files.createDirectories(outDir);
+        new Batch(operations, outDir, format, queueSize, ioThreads).run(inputs);
+    }
+
+    /**
+     * Pushes every input through the decode, transform, and encode stages, then prints throughput
+     *
+     * @param inputs Files to process
+     * @throws InterruptedException If interrupted while waiting for a stage
+     */
+    private void run(List<Path> inputs) throws InterruptedException {
+
+        // Images are transformed one per core, so each is processed on a single thread
+        TileScheduler.configure(1, true);
+        int transformThreads = Runtime.getRuntime().availableProcessors();
+
+        Queue<Job> pending = new ConcurrentLinkedQueue<>(reserveOutputs(inputs));
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Job> transformed = new ArrayBlockingQueue<>(queueSize);
+
+        long start = System.nanoTime();
+
+        List<Thread> decoders = startAll(ioThreads, Thread.ofVirtual().name("decode-", 0),
+                () -> decode(pending, decoded));
+        List<Thread> transformers = startAll(transformThreads, Thread.ofPlatform().name("transform-", 0),
+                () -> transform(decoded, transformed));
+        List<Thread> encoders = startAll(ioThreads, Thread.ofVirtual().name("encode-", 0),
+                () -> encode(transformed));
+
+        // Ends each stage once the one before it has finished
+        joinAll(decoders);
+        for (int i = 0; i < transformThreads; i++) {
+            decoded.put(END);
+        }
+        joinAll(transformers);
+        for (int i = 0; i < ioThreads; i++) {
+            transformed.put(END);
+        }
+        joinAll(encoders);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%d images (%d failed) in %.2fs: %.1f images/s, %.1f MB/s read, %.1f MB/s written%n",
+                images.get(), failures.get(), seconds, images.get() / seconds,
+                bytesRead.get() / 1e6 / seconds, bytesWritten.get() / 1e6 / seconds);
+    }
+
+    /**
+     * Decode stage: reads files until none are left
+     *
+     * @param pending Files still to read, with their outputs
+     * @param decoded Queue decoded images are put on
+     */
+    private void decode(Queue<Job> pending, BlockingQueue<Job> decoded) {
+        Job job;
+        while ((job = pending.poll()) != null) {
+            try {
+                Raster raster = ImageFiles.read(job.input());
+                bytesRead.addAndGet(Files.size(job.input()));
+                decoded.put(new Job(job.input(), job.output(), raster));
+            } catch (IOException | RuntimeException e) {
+                fail(job.input(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Transform stage: runs the operations on each decoded image
+     *
+     * @param decoded     Queue of decoded images
+     * @param transformed Queue transformed images are put on
+     */
+    private void transform(BlockingQueue<Job> decoded, BlockingQueue<Job> transformed) {
+        try {
+            Job job;
+            while ((job = decoded.take()) != END) {
+                try {
+
+                    // Fails images the steps would leave empty, before doing any of the work
+                    operations.largestStage(job.raster().getWidth(), job.raster().getHeight());
+                    Raster result = operations.applyTo(Pipeline.of(job.raster())).build();
+                    if (result != job.raster()) {
+                        RasterPool.getDefault().release(job.raster());
+                    }
+                    transformed.put(new Job(job.input(), job.output(), result));
+                } catch (RuntimeException e) {
+                    fail(job.input(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encode stage: writes each transformed image to the output directory
+     *
+     * @param transformed Queue of transformed images
+     */
+    private void encode(BlockingQueue<Job> transformed) {
+        try {
+            Job job;
+            while ((job = transformed.take()) != END) {
+                try {
+                    ImageFiles.write(job.raster(), format, job.output());
+                    RasterPool.getDefault().release(job.raster());
+                    bytesWritten.addAndGet(Files.size(job.output()));
+                    images.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    fail(job.input(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Names every input's output up front, so no two images write the same file and no image
+     * writes over an input. A name already taken gets the first free suffix, e.g. photo-1.png.
+     *
+     * @param inputs Files to process, in order
+     * @return One job per input, holding its output but no pixels yet
+     */
+    private List<Job> reserveOutputs(List<Path> inputs) {
+
+        // Compared ignoring case, as the output directory may be on a case-insensitive file system
+        Set<String> taken = new HashSet<>();
+        for (Path input : inputs) {
+            taken.add(nameKey(input));
+        }
+
+        List<Job> jobs = new ArrayList<>();
+        for (Path input : inputs) {
+            String base = baseName(input);
+            Path output = outDir.resolve(base + "." + format);
+            for (int suffix = 1; !taken.add(nameKey(output)); suffix++) {
+                output = outDir.resolve(base + "-" + suffix + "." + format);
+            }
+            if (!output.getFileName().toString().equals(base + "." + format)) {
+                System.err.println("Writing " + input + " to " + output + ", as " + base + "." + format + " is already taken");
+            }
+            jobs.add(new Job(input, output, null));
+        }
+        return jobs;
+    }
+
+    /**
+     * @param file File path
+     * @return Key that's the same for every path naming the same file, ignoring case, following
+     * links in whichever part of the path exists
+     */
+    private static String nameKey(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        try {
+            absolute = Files.exists(absolute) ? absolute.toRealPath()
+                    : absolute.getParent().toRealPath().resolve(absolute.getFileName());
+        } catch (IOException e) {
+
+            // Compared as given, as it can't be followed any further
+        }
+        return absolute.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Reports a failed image and carries on with the rest
+     *
+     * @param input File that failed
+     * @param e     Reason it failed
+     */
+    private void fail(Path input, Exception e) {
+        failures.incrementAndGet();
+        System.err.println("Failed " + input + ": " + e.getMessage());
+    }
+
+    /**
+     * Adds the files an argument names to the inputs
+     *
+     * @param argument File, directory, or @list file
+     * @param inputs   Inputs to add to
+     */
+    private static void collectInputs(String argument, List<Path> inputs) {
+        try {
+            if (argument.startsWith("@")) {
+                try (Stream<String> lines = Files.lines(Path.of(argument.substring(1)))) {
+                    lines.map(String::trim).filter(line -> !line.isEmpty()).map(Path::of).forEach(inputs::add);
+                }
+            } else if (Files.isDirectory(Path.of(argument))) {
+                try (Stream<Path> files = Files.list(Path.of(argument))) {
+                    files.filter(Files::isRegularFile)
+                            .filter(file -> IMAGE_EXTENSIONS.contains(extension(file)))
+                            .sorted()
+                            .forEach(inputs::add);
+                }
+            } else {
+                inputs.add(Path.of(argument));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read " + argument + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param file File path
+     * @return Lower-case extension, or "" if there isn't one
+     */
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param file File path
+     * @return File name without its extension
+     */
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Starts several threads running the same stage
+     *
+     * @param count   Number of threads
+     * @param builder Builder naming the threads
+     * @param stage   Stage each thread runs
+     * @return Started threads
+     */
+    private static List<Thread> startAll(int count, Thread.Builder builder, Runnable stage) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            threads.add(builder.start(stage));
+        }
+        return threads;
+    }
+
+    /**
+     * @param threads Threads to wait for
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static void joinAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package me.ewanl.cw255.cli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import me.ewanl.cw255.Instrumentation;
+import me.ewanl.cw255.LatencyHistogram;
+import me.ewanl.cw255.Pipeline;
+import me.ewanl.cw255.Raster;
+import me.ewanl.cw255.RasterPool;
+import me.ewanl.cw255.TileScheduler;
+import me.ewanl.cw255.io.ImageFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP service running the gamma / resize / filter operations on posted images, so other
+ * services can use them without embedding the JavaFX app.
+ *
+ * Each path segment is one step, run in order, with its parameters in the query string:
+ * <pre>
+ * curl --data-binary @in.png -H 'Content-Type: image/png' 'localhost:8255/laplace/resize/gamma?scale=0.5&amp;value=2.2'
+ * curl --data-binary @in.png -H 'Content-Type: image/png' 'localhost:8255/transform?ops=kernel=sharpen,gamma=2.2'
+ * </pre>
+ * Bodies are any image ImageIO reads (answered with a PNG), or raw 8-bit RGBA with a
+ * Content-Type of application/x-rgba and width and height parameters (answered the same way,
+ * with the size in X-Width and X-Height). GET /metrics gives counters and latencies as text.
+ *
+ * Requests are decoded and encoded on virtual threads, one per request. Only a bounded number
+ * are admitted at once, and any more are answered 503 straight away, before their bodies are
+ * read, so a burst can't fill the heap. Admitted images are transformed by one dispatcher
+ * thread: large ones one at a time, each split into bands across every core, and small ones
+ * (too small to split) in batches of whatever is waiting, spread one per core in one pass.
+ * Requests whose steps would make an image over the pixel limit are answered 413 before
+ * they're queued, and any failure transforming an image, even running out of memory, is
+ * answered as that request's error rather than stopping the dispatcher.
+ */
+public final class ImageServer {
+
+    /**
+     * Usage message printed on bad arguments
+     */
+    private static final String USAGE = """
+            Usage: ImageServer [options]
+              --host <name>        Address to listen on, default localhost
+              --port <n>           Port to listen on, default 8255
+              --queue <n>          Requests admitted at once before answering 503, default 64
+              --batch <n>          Most small images transformed in one pass, default 16
+              --batch-pixels <n>   Images of at most this many pixels are batched, default 65536
+              --max-bytes <n>      Largest request body accepted, default 67108864
+              --max-pixels <n>     Most pixels in an image or any step's result, default 67108864
+              --timeout <s>        Seconds a request waits to be transformed before answering 503, default 60
+            Steps: /laplace, /kernel?name=<name>, /resize?scale=<scale>[&mode=nn|bilinear|bicubic|lanczos3],
+                   /gamma?value=<value>, /transform?ops=<steps as for Batch --ops>, chained as /laplace/gamma?...
+            Kernels: laplacian, edge, sharpen, sobel-x, box-blur, gaussian-blur, disc-blur
+            Bodies: an image ImageIO reads, or raw RGBA as application/x-rgba with width and height parameters.""";
+
+    /**
+     * Content type of raw 8-bit RGBA bodies
+     */
+    private static final String RAW_RGBA = "application/x-rgba";
+
+    /**
+     * Image waiting to be transformed
+     *
+     * @param raster     Pixels of the image
+     * @param operations Steps to run on it
+     * @param result     Completed with the transformed raster, or the reason it failed
+     */
+    private record Job(Raster raster, OperationSpec operations, CompletableFuture<Raster> result) {
+
+        /**
+         * @return Number of pixels in the image
+         */
+        long pixels() {
+            return (long) raster.getWidth() * raster.getHeight();
+        }
+    }
+
+    /**
+     * Error answered with a status code other than 500
+     */
+    private static final class HttpError extends Exception {
+
+        /**
+         * Status code to answer with
+         */
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Number of transform requests answered, whatever their status
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of requests answered 503 as too many were admitted
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of requests answered with an error other than 503
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Number of passes the dispatcher has run
+     */
+    private final AtomicLong passes = new AtomicLong();
+
+    /**
+     * Number of images transformed in passes of more than one
+     */
+    private final AtomicLong batchedImages = new AtomicLong();
+
+    /**
+     * Bytes of request bodies read
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Bytes of response bodies written
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Permits for the requests admitted at once
+     */
+    private final Semaphore admission;
+
+    /**
+     * Admitted images waiting for the dispatcher, never fuller than the admission limit
+     */
+    private final BlockingQueue<Job> queue;
+
+    private final int queueSize;
+    private final int batchSize;
+    private final long batchPixels;
+    private final int maxBytes;
+    private final long maxPixels;
+    private final long timeoutSeconds;
+
+    private ImageServer(int queueSize, int batchSize, long batchPixels, int maxBytes, long maxPixels, long timeoutSeconds) {
+        this.queueSize = queueSize;
+        this.batchSize = batchSize;
+        this.batchPixels = batchPixels;
+        this.maxBytes = maxBytes;
+        this.maxPixels = maxPixels;
+        this.timeoutSeconds = timeoutSeconds;
+        this.admission = new Semaphore(queueSize);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Starts the server, which runs until the process is stopped
+     *
+     * @param args Command-line arguments, see USAGE
+     * @throws IOException If the port can't be listened on
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        String host = "localhost";
+        int port = 8255;
+        int queueSize = 64;
+        int batchSize = 16;
+        long batchPixels = 1 << 16;
+        int maxBytes = 64 << 20;
+        long maxPixels = 1 << 26;
+        long timeoutSeconds = 60;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host" -> host = args[++i];
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--queue" -> queueSize = Integer.parseInt(args[++i]);
+                    case "--batch" -> batchSize = Integer.parseInt(args[++i]);
+                    case "--batch-pixels" -> batchPixels = Long.parseLong(args[++i]);
+                    case "--max-bytes" -> maxBytes = Integer.parseInt(args[++i]);
+                    case "--max-pixels" -> maxPixels = Long.parseLong(args[++i]);
+                    case "--timeout" -> timeoutSeconds = Long.parseLong(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (queueSize < 1 || batchSize < 1 || maxPixels < 1 || timeoutSeconds < 1) {
+                throw new IllegalArgumentException("--queue, --batch, --max-pixels and --timeout must be at least 1");
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? USAGE : e.getMessage() + "\n" + USAGE);
+            System.exit(2);
+        }
+
+        HttpServer server = new ImageServer(queueSize, batchSize, batchPixels, maxBytes, maxPixels, timeoutSeconds)
+                .start(new InetSocketAddress(host, port));
+        System.out.printf(Locale.ROOT, "Listening on http://%s:%d/%n", host, server.getAddress().getPort());
+    }
+
+    /**
+     * Starts the dispatcher and the HTTP server
+     *
+     * @param address Address to listen on
+     * @return Running server
+     * @throws IOException If the address can't be listened on
+     */
+    private HttpServer start(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/", this::handleTransform);
+
+        Thread.ofPlatform().daemon().name("image-server-dispatch").start(this::dispatch);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Answers a request to transform an image
+     *
+     * @param exchange Request and response
+     * @throws IOException If the response can't be written
+     */
+    private void handleTransform(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+
+        // Turns away requests over the limit before reading them, so they cost next to nothing
+        if (!admission.tryAcquire()) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Too many requests in progress\n");
+            return;
+        }
+
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                throw new HttpError(405, "Images must be POSTed");
+            }
+            Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+            OperationSpec operations = operations(exchange.getRequestURI().getPath(), parameters);
+
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean raw = contentType != null && contentType.startsWith(RAW_RGBA);
+            byte[] body = readBody(exchange.getRequestBody());
+            Raster raster = raw ? readRgba(body, parameters, operations) : readImage(body, operations);
+
+            // Waits on this virtual thread while the dispatcher transforms the image, giving up
+            // (and cancelling it, so the dispatcher skips it) if that takes too long
+            Job job = new Job(raster, operations, new CompletableFuture<>());
+            queue.put(job);
+            Raster result;
+            try {
+                result = job.result().get(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                job.result().cancel(false);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                throw new HttpError(503, "Timed out after " + timeoutSeconds + " s waiting to be transformed");
+            }
+            if (result != raster) {
+                RasterPool.getDefault().release(raster);
+            }
+
+            // Encodes into a byte array, so the result's pixels can go back to the pool before it's sent
+            byte[] encoded;
+            if (raw) {
+                encoded = writeRgba(result);
+            } else {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageFiles.write(result, "png", png);
+                encoded = png.toByteArray();
+            }
+            int width = result.getWidth(), height = result.getHeight();
+            RasterPool.getDefault().release(result);
+
+            if (raw) {
+                exchange.getResponseHeaders().set("X-Width", Integer.toString(width));
+                exchange.getResponseHeaders().set("X-Height", Integer.toString(height));
+            }
+            respond(exchange, 200, raw ? RAW_RGBA : "image/png", encoded);
+        } catch (HttpError e) {
+            failures.incrementAndGet();
+            respond(exchange, e.status, e.getMessage() + "\n");
+        } catch (ExecutionException e) {
+            failures.incrementAndGet();
+            Throwable cause = e.getCause();
+            int status = cause instanceof IllegalArgumentException ? 400 : cause instanceof OutOfMemoryError ? 503 : 500;
+            respond(exchange, status, (cause.getMessage() == null ? cause.toString() : cause.getMessage()) + "\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+            respond(exchange, 500, "Interrupted\n");
+        } catch (OutOfMemoryError e) {
+
+            // Only this request's pixels are lost, so the rest carry on and this one can be retried
+            failures.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Out of memory\n");
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            respond(exchange, 500, (e.getMessage() == null ? e.toString() : e.getMessage()) + "\n");
+        } finally {
+            admission.release();
+            Instrumentation.histogram("request").record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Dispatcher: takes admitted images off the queue and transforms them, batching small ones
+     */
+    private void dispatch() {
+        List<Job> pass = new ArrayList<>();
+        try {
+            while (true) {
+                pass.clear();
+                pass.add(queue.take());
+
+                // Gathers whatever small images are already waiting, without waiting for more,
+                // so batches only form under load and a lone request isn't held back
+                if (pass.get(0).pixels() <= batchPixels) {
+                    Job next;
+                    while (pass.size() < batchSize && (next = queue.peek()) != null && next.pixels() <= batchPixels) {
+                        pass.add(queue.poll());
+                    }
+                }
+
+                // Fails whatever the pass didn't finish, so a failure outside any one image
+                // only costs its own requests, not the dispatcher
+                try {
+                    run(pass);
+                } catch (Throwable e) {
+                    for (Job job : pass) {
+                        job.result().completeExceptionally(e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Transforms one pass of images. A single image is split into bands across the scheduler's pool
+     * as usual; several are each given one of the pool's threads, as one band each would be.
+     *
+     * @param pass Images to transform
+     */
+    private void run(List<Job> pass) {
+        passes.incrementAndGet();
+        if (pass.size() > 1) {
+            batchedImages.addAndGet(pass.size());
+        }
+
+        TileScheduler.getDefault().reduceFixedBands(1, pass.size(), (startRow, endRow) -> {
+            for (Job job : pass.subList(startRow, endRow)) {
+                if (job.result().isDone()) {
+                    continue;
+                }
+
+                // Catches errors too, as one image running out of memory mustn't stop the rest
+                try {
+                    job.result().complete(job.operations().applyTo(Pipeline.of(job.raster())).build());
+                } catch (Throwable e) {
+                    job.result().completeExceptionally(e);
+                }
+            }
+            return null;
+        }, (left, right) -> null);
+    }
+
+    /**
+     * Answers GET /metrics with counters and latency percentiles, one per line
+     *
+     * @param exchange Request and response
+     * @throws IOException If the response can't be written
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder metrics = new StringBuilder();
+        metric(metrics, "cw255_requests_total", requests.get());
+        metric(metrics, "cw255_rejected_total", rejected.get());
+        metric(metrics, "cw255_failed_total", failures.get());
+        metric(metrics, "cw255_in_flight", queueSize - admission.availablePermits());
+        metric(metrics, "cw255_queue_limit", queueSize);
+        metric(metrics, "cw255_queued", queue.size());
+        metric(metrics, "cw255_passes_total", passes.get());
+        metric(metrics, "cw255_batched_images_total", batchedImages.get());
+        metric(metrics, "cw255_read_bytes_total", bytesRead.get());
+        metric(metrics, "cw255_written_bytes_total", bytesWritten.get());
+
+        // How much of the pool is in use, and how often it saves an allocation
+        RasterPool pool = RasterPool.getDefault();
+        metric(metrics, "cw255_pool_retained_bytes", pool.getRetainedBytes());
+        metric(metrics, "cw255_pool_limit_bytes", pool.getMaxBytes());
+        metric(metrics, "cw255_pool_retained_arrays", pool.getRetained());
+        metric(metrics, "cw255_pool_acquires_total", pool.getAcquires());
+        metric(metrics, "cw255_pool_reuses_total", pool.getReuses());
+        metric(metrics, "cw255_pool_releases_total", pool.getReleases());
+        metric(metrics, "cw255_pool_drops_total", pool.getDrops());
+
+        // Every operation's latencies, including whole requests as "request"
+        Instrumentation.histograms().forEach((operation, histogram) -> latencies(metrics, operation, histogram));
+        respond(exchange, 200, "text/plain; version=0.0.4", metrics.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param metrics Text to append to
+     * @param name    Name of the metric
+     * @param value   Its value
+     */
+    private static void metric(StringBuilder metrics, String name, long value) {
+        metrics.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @param metrics   Text to append to
+     * @param operation Name of the operation
+     * @param histogram Its latencies
+     */
+    private static void latencies(StringBuilder metrics, String operation, LatencyHistogram histogram) {
+        for (double percentile : new double[]{50, 95, 99}) {
+            metrics.append(String.format(Locale.ROOT, "cw255_operation_seconds{operation=\"%s\",quantile=\"%s\"} %.6f%n",
+                    operation, percentile / 100, histogram.percentile(percentile) / 1e9));
+        }
+        metrics.append(String.format(Locale.ROOT, "cw255_operation_seconds_count{operation=\"%s\"} %d%n",
+                operation, histogram.getCount()));
+    }
+
+    /**
+     * Turns a request's path into the steps to run, one per segment
+     *
+     * @param path       Path of the request, e.g. /laplace/gamma
+     * @param parameters Query parameters giving each step's values
+     * @return Steps to run
+     * @throws HttpError If a step isn't known or is missing a parameter
+     */
+    private static OperationSpec operations(String path, Map<String, String> parameters) throws HttpError {
+        List<String> steps = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            switch (segment) {
+                case "" -> {
+                }
+                case "laplace" -> steps.add("laplace");
+                case "kernel" -> steps.add("kernel=" + required(parameters, "name"));
+                case "gamma" -> steps.add("gamma=" + required(parameters, "value"));
+                case "resize" -> steps.add("resize=" + required(parameters, "scale")
+                        + (parameters.containsKey("mode") ? ":" + parameters.get("mode") : ""));
+                case "transform" -> steps.add(required(parameters, "ops"));
+                default -> throw new HttpError(404, "Unknown step: " + segment);
+            }
+        }
+        if (steps.isEmpty()) {
+            throw new HttpError(404, "No steps given");
+        }
+
+        try {
+            return OperationSpec.parse(String.join(",", steps));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, e.getMessage());
+        }
+    }
+
+    /**
+     * Checks an image and every step's result fit in the pixel limit, before any memory is spent on them
+     *
+     * @param width      Width of the image to transform
+     * @param height     Height of the image to transform
+     * @param operations Steps to run on it
+     * @throws HttpError If a step would leave no pixels, or any result would be over the limit
+     */
+    private void checkSize(int width, int height, OperationSpec operations) throws HttpError {
+        long largest;
+        try {
+            largest = operations.largestStage(width, height);
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, e.getMessage());
+        }
+        if (largest > maxPixels) {
+            throw new HttpError(413, "Result would be " + largest + " pixels, over the limit of " + maxPixels);
+        }
+    }
+
+    /**
+     * @param parameters Query parameters
+     * @param name       Name of the one wanted
+     * @return Its value
+     * @throws HttpError If it wasn't given
+     */
+    private static String required(Map<String, String> parameters, String name) throws HttpError {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * @param query Raw query string, or null if there isn't one
+     * @return Decoded parameters, the last of each name winning
+     */
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] nameAndValue = pair.split("=", 2);
+                parameters.put(URLDecoder.decode(nameAndValue[0], StandardCharsets.UTF_8),
+                        nameAndValue.length < 2 ? "" : URLDecoder.decode(nameAndValue[1], StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @param in Request body
+     * @return Every byte of it
+     * @throws IOException If it can't be read
+     * @throws HttpError   If it's over the size limit
+     */
+    private byte[] readBody(InputStream in) throws IOException, HttpError {
+        byte[] body = in.readNBytes(maxBytes + 1);
+        if (body.length > maxBytes) {
+            throw new HttpError(413, "Body is over " + maxBytes + " bytes");
+        }
+        bytesRead.addAndGet(body.length);
+        return body;
+    }
+
+    /**
+     * Decodes an image once its header shows it and every step's result fit in the pixel limit,
+     * as a small, highly compressed body can decode to far more pixels than it has bytes
+     *
+     * @param body       Encoded image
+     * @param operations Steps to run on it
+     * @return Decoded raster
+     * @throws HttpError If it isn't an image ImageIO understands, or is too large
+     */
+    private Raster readImage(byte[] body, OperationSpec operations) throws HttpError {
+        try {
+            int[] size = ImageFiles.readSize(new ByteArrayInputStream(body));
+            checkSize(size[0], size[1], operations);
+            return ImageFiles.read(new ByteArrayInputStream(body));
+        } catch (IOException e) {
+
+            // ImageIO wraps errors thrown while decoding, running out of memory included
+            if (e.getCause() instanceof OutOfMemoryError) {
+                throw new HttpError(503, "Out of memory decoding image");
+            }
+            throw new HttpError(400, "Can't decode image: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param body       Raw RGBA pixels, four bytes each, row by row
+     * @param parameters Query parameters giving the width and height
+     * @param operations Steps to run on the pixels
+     * @return Raster of the pixels
+     * @throws HttpError If the size is missing, doesn't match the body, or is too large
+     */
+    private Raster readRgba(byte[] body, Map<String, String> parameters, OperationSpec operations) throws HttpError {
+        int width, height;
+        try {
+            width = Integer.parseInt(required(parameters, "width"));
+            height = Integer.parseInt(required(parameters, "height"));
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Width and height must be whole numbers");
+        }
+        if (width < 0 || height < 0 || (long) width * height * 4 != body.length) {
+            throw new HttpError(400, "Body is " + body.length + " bytes, not " + width + "x" + height + " RGBA");
+        }
+        checkSize(width, height, operations);
+
+        Raster raster = RasterPool.getDefault().acquireRaster(width, height);
+        int[] pixels = raster.getPixels();
+        for (int i = 0; i < width * height; i++) {
+            int r = body[4 * i] & 0xFF, g = body[4 * i + 1] & 0xFF, b = body[4 * i + 2] & 0xFF, a = body[4 * i + 3] & 0xFF;
+            pixels[i] = a << 24 | r << 16 | g << 8 | b;
+        }
+        return raster;
+    }
+
+    /**
+     * @param raster Raster to write
+     * @return Its pixels as raw RGBA, four bytes each, row by row
+     */
+    private static byte[] writeRgba(Raster raster) {
+        int[] pixels = raster.getPixels();
+        byte[] rgba = new byte[raster.getWidth() * raster.getHeight() * 4];
+        for (int i = 0; i < rgba.length / 4; i++) {
+            rgba[4 * i] = (byte) (pixels[i] >> 16);
+            rgba[4 * i + 1] = (byte) (pixels[i] >> 8);
+            rgba[4 * i + 2] = (byte) pixels[i];
+            rgba[4 * i + 3] = (byte) (pixels[i] >>> 24);
+        }
+        return rgba;
+    }
+
+    /**
+     * Answers with a plain-text message
+     *
+     * @param exchange Request and response
+     * @param status   Status code
+     * @param message  Body of the response
+     * @throws IOException If the response can't be written
+     */
+    private void respond(HttpExchange exchange, int status, String message) throws IOException {
+        respond(exchange, status, "text/plain; charset=utf-8", message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answers with a body, then closes the exchange
+     *
+     * @param exchange    Request and response
+     * @param status      Status code
+     * @param contentType Type of the body
+     * @param body        Body of the response
+     * @throws IOException If the response can't be written
+     */
+    private void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        try (exchange; OutputStream out = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            out.write(body);
+            bytesWritten.addAndGet(body.length);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package me.ewanl.cw255.cli;
+
+import me.ewanl.cw255.Interpolation;
+import me.ewanl.cw255.Kernel;
+import me.ewanl.cw255.Pipeline;
+import me.ewanl.cw255.RowSource;
+import me.ewanl.cw255.RowStreams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operations given on the command line, e.g. "laplace,resize=0.5:bilinear,kernel=sharpen,gamma=2.2",
+ * applied in order to either an in-memory pipeline or a stream of rows.
+ */
+final class OperationSpec {
+
+    /**
+     * One parsed step
+     */
+    private sealed interface Step {
+    }
+
+    private record Convolve(Kernel kernel) implements Step {
+    }
+
+    private record Resize(double scale, Interpolation interpolation) implements Step {
+    }
+
+    private record Gamma(double gamma) implements Step {
+    }
+
+    /**
+     * Steps, in the order they run
+     */
+    private final List<Step> steps;
+
+    private OperationSpec(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Parses comma-separated steps
+     *
+     * @param spec Comma-separated steps
+     * @return Parsed steps
+     * @throws IllegalArgumentException If a step isn't recognised
+     */
+    static OperationSpec parse(String spec) {
+        List<Step> steps = new ArrayList<>();
+        for (String step : spec.split(",")) {
+            String[] nameAndValue = step.trim().split("=", 2);
+            steps.add(switch (nameAndValue[0]) {
+                case "laplace" -> new Convolve(Kernel.LAPLACIAN);
+                case "kernel" -> new Convolve(Kernel.named(value(nameAndValue, step)));
+                case "gamma" -> new Gamma(Double.parseDouble(value(nameAndValue, step)));
+                case "resize" -> {
+                    String[] scaleAndMode = value(nameAndValue, step).split(":", 2);
+                    Interpolation interpolation = scaleAndMode.length < 2 ? Interpolation.BILINEAR
+                            : switch (scaleAndMode[1]) {
+                                case "nn" -> Interpolation.NEAREST_NEIGHBOUR;
+                                case "bilinear" -> Interpolation.BILINEAR;
+                                case "bicubic" -> Interpolation.BICUBIC;
+                                case "lanczos3" -> Interpolation.LANCZOS3;
+                                default -> throw new IllegalArgumentException("Unknown interpolation: " + step);
+                            };
+                    double scale = Double.parseDouble(scaleAndMode[0]);
+                    if (!(scale > 0) || Double.isInfinite(scale)) {
+                        throw new IllegalArgumentException("Scale must be above 0: " + step);
+                    }
+                    yield new Resize(scale, interpolation);
+                }
+                default -> throw new IllegalArgumentException("Unknown step: " + step);
+            });
+        }
+        return new OperationSpec(List.copyOf(steps));
+    }
+
+    /**
+     * Works out the size of every step's result without running any of them
+     *
+     * @param width  Width of the image the steps run on
+     * @param height Height of the image the steps run on
+     * @return Pixels in the largest result of any step, including the image itself
+     * @throws IllegalArgumentException If a step would leave no pixels
+     */
+    long largestStage(int width, int height) {
+        long largest = (long) width * height;
+        for (Step step : steps) {
+            switch (step) {
+                case Convolve c -> {
+                    width -= c.kernel().getWidth() - 1;
+                    height -= c.kernel().getHeight() - 1;
+                }
+                case Resize r -> {
+                    if (width * r.scale() >= Integer.MAX_VALUE || height * r.scale() >= Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Resizing by " + r.scale() + " is too large");
+                    }
+                    width = (int) (width * r.scale());
+                    height = (int) (height * r.scale());
+                }
+                case Gamma g -> {
+                }
+            }
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Steps leave an empty image");
+            }
+            largest = Math.max(largest, (long) width * height);
+        }
+        return largest;
+    }
+
+    /**
+     * Adds the steps to an in-memory pipeline
+     *
+     * @param pipeline Pipeline to add to
+     * @return Pipeline with the steps added
+     */
+    Pipeline applyTo(Pipeline pipeline) {
+        for (Step step : steps) {
+            pipeline = switch (step) {
+                case Convolve c -> pipeline.convolve(c.kernel());
+                case Resize r -> pipeline.resize(r.scale(), r.interpolation());
+                case Gamma g -> pipeline.gamma(g.gamma());
+            };
+        }
+        return pipeline;
+    }
+
+    /**
+     * Wraps a stream of rows in the steps
+     *
+     * @param source Rows to transform
+     * @return Transformed rows
+     */
+    RowSource applyTo(RowSource source) {
+        for (Step step : steps) {
+            source = switch (step) {
+                case Convolve c -> RowStreams.filter(source, c.kernel());
+                case Resize r -> r.scale() == 1 ? source : RowStreams.resize(source, r.scale(), r.interpolation());
+                case Gamma g -> RowStreams.gamma(source, g.gamma());
+            };
+        }
+        return source;
+    }
+
+    /**
+     * @param nameAndValue Step split on '='
+     * @param step         Whole step, for the error message
+     * @return Value of the step
+     * @throws IllegalArgumentException If the step has no value
+     */
+    private static String value(String[] nameAndValue, String step) {
+        if (nameAndValue.length < 2) {
+            throw new IllegalArgumentException("Step needs a value: " + step);
+        }
+        return nameAndValue[1];
+    }
+}
@@ -0,0 +1,73 @@
+package me.ewanl.cw255.cli;
+
+import me.ewanl.cw255.RowSource;
+import me.ewanl.cw255.io.PixelMapFile;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Runs the operations over one image too large for the heap, streaming it a strip of rows
+ * at a time between memory-mapped PPM/PAM files. Only the rows each operation's kernel
+ * covers are held in memory, so the image's size is limited by the disk rather than the heap.
+ *
+ * <pre>
+ * java -cp ... me.ewanl.cw255.cli.StreamImage --ops laplace,gamma=2.2 huge.ppm out.ppm
+ * </pre>
+ */
+public final class StreamImage {
+
+    /**
+     * Usage message printed on bad arguments
+     */
+    private static final String USAGE = """
+            Usage: StreamImage --ops <steps> <input.ppm|pam> <output.ppm|pam>
+              --ops <steps>    Comma-separated steps, run in order:
+                                 laplace | kernel=<name> | resize=<scale>[:nn|:bilinear|:bicubic|:lanczos3] | gamma=<value>
+                               Kernels: laplacian, edge, sharpen, sobel-x, box-blur, gaussian-blur, disc-blur
+            The output keeps alpha if its name ends in .pam.""";
+
+    private StreamImage() {
+    }
+
+    /**
+     * Streams the input through the operations into the output
+     *
+     * @param args Command-line arguments, see USAGE
+     * @throws Exception If either file can't be read or written
+     */
+    public static void main(String[] args) throws Exception {
+        OperationSpec operations = null;
+        Path input = null;
+        Path output = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--ops")) {
+                    operations = OperationSpec.parse(args[++i]);
+                } else if (input == null) {
+                    input = Path.of(args[i]);
+                } else {
+                    output = Path.of(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? USAGE : e.getMessage() + "\n" + USAGE);
+            System.exit(2);
+        }
+        if (operations == null || input == null || output == null) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        try (PixelMapFile source = PixelMapFile.open(input)) {
+            RowSource result = operations.applyTo(source);
+            PixelMapFile.write(result, output);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "%dx%d -> %dx%d in %.2fs: %.1f MP/s%n",
+                    source.getWidth(), source.getHeight(), result.getWidth(), result.getHeight(), seconds,
+                    (double) source.getWidth() * source.getHeight() / 1e6 / seconds);
+        }
+    }
+}
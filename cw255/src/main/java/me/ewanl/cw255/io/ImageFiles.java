@@ -0,0 +1,146 @@
+package me.ewanl.cw255.io;
+
+import me.ewanl.cw255.Raster;
+import me.ewanl.cw255.RasterPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Reads and writes rasters as image files through ImageIO, so no JavaFX toolkit
+ * (and no display) is needed.
+ */
+public final class ImageFiles {
+
+    private ImageFiles() {
+    }
+
+    /**
+     * Decodes an image file
+     *
+     * @param path File to read
+     * @return Decoded raster
+     * @throws IOException If the file can't be read or isn't an image ImageIO understands
+     */
+    public static Raster read(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return read(in);
+        } catch (IOException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes an image from a stream
+     *
+     * @param in Stream to read, left open
+     * @return Decoded raster
+     * @throws IOException If the stream can't be read or isn't an image ImageIO understands
+     */
+    public static Raster read(InputStream in) throws IOException {
+        BufferedImage image = ImageIO.read(in);
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return fromBufferedImage(image);
+    }
+
+    /**
+     * Reads an image's size from its header, without decoding (or allocating) any pixels
+     *
+     * @param in Stream to read, left open
+     * @return Width and height of the first image in the stream
+     * @throws IOException If the stream can't be read or isn't an image ImageIO understands
+     */
+    public static int[] readSize(InputStream in) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Encodes a raster to an image file
+     *
+     * @param raster Raster to write
+     * @param format ImageIO format name, e.g. "png" or "jpg"
+     * @param path   File to write
+     * @throws IOException If the file can't be written
+     */
+    public static void write(Raster raster, String format, Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(raster, format, out);
+        }
+    }
+
+    /**
+     * Encodes a raster to a stream
+     *
+     * @param raster Raster to write
+     * @param format ImageIO format name, e.g. "png" or "jpg"
+     * @param out    Stream to write, left open
+     * @throws IOException If the stream can't be written, or no writer exists for the format
+     */
+    public static void write(Raster raster, String format, OutputStream out) throws IOException {
+        if (!ImageIO.write(toBufferedImage(raster, hasAlpha(format)), format, out)) {
+            throw new IOException("No writer for format " + format);
+        }
+    }
+
+    /**
+     * Copies a BufferedImage's pixels into a raster with one bulk call
+     *
+     * @param image Image to copy
+     * @return Raster of packed ARGB pixels
+     */
+    public static Raster fromBufferedImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster raster = RasterPool.getDefault().acquireRaster(width, height);
+        image.getRGB(0, 0, width, height, raster.getPixels(), 0, width);
+        return raster;
+    }
+
+    /**
+     * Copies a raster into a new BufferedImage
+     *
+     * @param raster Raster to copy
+     * @param alpha  Whether to keep the alpha channel
+     * @return Image with the same pixels
+     */
+    public static BufferedImage toBufferedImage(Raster raster, boolean alpha) {
+        BufferedImage image = new BufferedImage(raster.getWidth(), raster.getHeight(),
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+        // Both types store one packed int per pixel, RGB just ignores the top byte
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(raster.getPixels(), 0, data, 0, raster.getWidth() * raster.getHeight());
+        return image;
+    }
+
+    /**
+     * @param format ImageIO format name
+     * @return Whether the format can store an alpha channel
+     */
+    private static boolean hasAlpha(String format) {
+        return !(format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("bmp"));
+    }
+}
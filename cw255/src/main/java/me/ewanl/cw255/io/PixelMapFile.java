@@ -0,0 +1,255 @@
+package me.ewanl.cw255.io;
+
+import me.ewanl.cw255.RowSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Binary PPM (P6) or PAM (P7) file, read and written through memory-mapped windows
+ * of whole rows, so files far larger than the heap can be streamed a strip at a time.
+ * Only 8-bit samples are supported; PAM files may be RGB or RGB_ALPHA.
+ */
+public final class PixelMapFile implements RowSource, Closeable {
+
+    /**
+     * Most bytes of the file mapped at once
+     */
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    /**
+     * Most bytes a header is read from
+     */
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+
+    /**
+     * Bytes per pixel, 3 for RGB or 4 for RGB_ALPHA
+     */
+    private final int depth;
+
+    /**
+     * Offset of the first pixel in the file
+     */
+    private final long dataOffset;
+
+    /**
+     * Rows currently mapped, starting at windowStart
+     */
+    private MappedByteBuffer window;
+    private int windowStart;
+    private int windowRows;
+
+    private PixelMapFile(FileChannel channel, int width, int height, int depth, long dataOffset) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Opens a file for reading
+     *
+     * @param path PPM or PAM file
+     * @return Open file, to be closed by the caller
+     * @throws IOException If the file can't be read or its header isn't supported
+     */
+    public static PixelMapFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer headerBytes = ByteBuffer.allocate((int) Math.min(MAX_HEADER_BYTES, channel.size()));
+            channel.read(headerBytes, 0);
+            Header header = new Header(headerBytes.array(), headerBytes.position());
+            return header.parse(channel, path);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams every row of a source into a new file
+     *
+     * @param source Rows to write
+     * @param path   File to write, PAM with alpha if it ends in ".pam", otherwise PPM
+     * @throws IOException If the file can't be written
+     */
+    public static void write(RowSource source, Path path) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        boolean alpha = path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pam");
+        int depth = alpha ? 4 : 3;
+
+        String header = alpha
+                ? "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n"
+                : "P6\n" + width + " " + height + "\n255\n";
+        byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(headerBytes), 0);
+
+            long rowBytes = (long) width * depth;
+            int rowsPerWindow = (int) Math.max(1, WINDOW_BYTES / Math.max(1, rowBytes));
+            int[] row = new int[width];
+
+            // Maps a window of output rows at a time, filling it straight from the source
+            for (int start = 0; start < height; start += rowsPerWindow) {
+                int rows = Math.min(rowsPerWindow, height - start);
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+                        headerBytes.length + start * rowBytes, rows * rowBytes);
+                for (int y = start; y < start + rows; y++) {
+                    source.readRow(y, row);
+                    for (int x = 0; x < width; x++) {
+                        int argb = row[x];
+                        out.put((byte) (argb >>> 16)).put((byte) (argb >>> 8)).put((byte) argb);
+                        if (alpha) {
+                            out.put((byte) (argb >>> 24));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int[] argb) {
+        if (window == null || y < windowStart || y >= windowStart + windowRows) {
+            mapWindow(y);
+        }
+
+        int offset = (y - windowStart) * width * depth;
+        for (int x = 0; x < width; x++, offset += depth) {
+            int r = window.get(offset) & 0xFF;
+            int g = window.get(offset + 1) & 0xFF;
+            int b = window.get(offset + 2) & 0xFF;
+            int a = depth == 4 ? window.get(offset + 3) & 0xFF : 0xFF;
+            argb[x] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Maps the window of rows starting at a row
+     *
+     * @param y First row of the window
+     */
+    private void mapWindow(int y) {
+        long rowBytes = (long) width * depth;
+        windowRows = (int) Math.min(height - y, Math.max(1, WINDOW_BYTES / Math.max(1, rowBytes)));
+        windowStart = y;
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + y * rowBytes, windowRows * rowBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Reads the whitespace-separated tokens of a PPM or PAM header
+     */
+    private static final class Header {
+
+        private final byte[] bytes;
+        private final int length;
+        private int position;
+
+        Header(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * @param channel File the header came from
+         * @param path    Path of the file, for error messages
+         * @return File ready to read
+         * @throws IOException If the header is malformed or not supported
+         */
+        PixelMapFile parse(FileChannel channel, Path path) throws IOException {
+            String magic = token();
+            int width, height, depth, maxValue;
+
+            if (magic.equals("P6")) {
+                width = Integer.parseInt(token());
+                height = Integer.parseInt(token());
+                maxValue = Integer.parseInt(token());
+                depth = 3;
+                position++; // Single whitespace character before the pixels
+            } else if (magic.equals("P7")) {
+                width = height = depth = maxValue = -1;
+                for (String key = token(); !key.equals("ENDHDR"); key = token()) {
+                    switch (key) {
+                        case "WIDTH" -> width = Integer.parseInt(token());
+                        case "HEIGHT" -> height = Integer.parseInt(token());
+                        case "DEPTH" -> depth = Integer.parseInt(token());
+                        case "MAXVAL" -> maxValue = Integer.parseInt(token());
+                        case "TUPLTYPE" -> token();
+                        default -> throw new IOException(path + ": unknown PAM header field " + key);
+                    }
+                }
+                position++; // Newline after ENDHDR
+            } else {
+                throw new IOException(path + ": not a binary PPM or PAM file");
+            }
+
+            if (maxValue != 255 || (depth != 3 && depth != 4) || width <= 0 || height <= 0) {
+                throw new IOException(path + ": only 8-bit RGB or RGB_ALPHA images are supported");
+            }
+            if (channel.size() < position + (long) width * height * depth) {
+                throw new IOException(path + ": file is shorter than its header says");
+            }
+            return new PixelMapFile(channel, width, height, depth, position);
+        }
+
+        /**
+         * @return Next token, skipping whitespace and comments
+         * @throws IOException If the header ends first
+         */
+        private String token() throws IOException {
+            while (position < length && (Character.isWhitespace(bytes[position]) || bytes[position] == '#')) {
+                if (bytes[position] == '#') {
+                    while (position < length && bytes[position] != '\n') {
+                        position++;
+                    }
+                } else {
+                    position++;
+                }
+            }
+            int start = position;
+            while (position < length && !Character.isWhitespace(bytes[position])) {
+                position++;
+            }
+            if (start == position) {
+                throw new IOException("Header ended unexpectedly");
+            }
+            return new String(bytes, start, position - start, StandardCharsets.US_ASCII);
+        }
+    }
+}
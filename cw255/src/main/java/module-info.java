@@ -1,8 +1,15 @@
 module me.ewanl.cw255 {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.desktop;
+    requires jdk.jfr;
+    requires jdk.management;
+    requires jdk.httpserver;
+    requires static jdk.incubator.vector;
 
 
     opens me.ewanl.cw255 to javafx.fxml;
     exports me.ewanl.cw255;
-}
\ No newline at end of file
+    exports me.ewanl.cw255.cli;
+    exports me.ewanl.cw255.io;
+}
@@ -0,0 +1,73 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks every strategy gives exactly the same filtered pixels as the direct one, on the
+ * registry's large kernels and at sizes that aren't a power of two, so the transforms'
+ * blocks and the scheduler's bands end part way through the image.
+ */
+class ConvolutionEngineTest {
+
+    /**
+     * Sizes tried, from barely larger than the kernels to several transform blocks across
+     */
+    private static final int[][] SIZES = {{31, 31}, {47, 33}, {97, 61}, {203, 150}, {301, 257}};
+
+    @Test
+    void gaussianBlurMatchesDirect() {
+        Kernel kernel = Kernel.named("gaussian-blur");
+        assertTrue(kernel.isSeparable());
+        assertStrategiesMatch(kernel, ConvolutionEngine.Strategy.SEPARABLE, ConvolutionEngine.Strategy.FFT);
+    }
+
+    @Test
+    void boxBlurMatchesDirect() {
+        Kernel kernel = Kernel.named("box-blur");
+        assertTrue(kernel.isSeparable());
+        assertStrategiesMatch(kernel, ConvolutionEngine.Strategy.SEPARABLE, ConvolutionEngine.Strategy.FFT);
+    }
+
+    @Test
+    void discBlurMatchesDirect() {
+        Kernel kernel = Kernel.named("disc-blur");
+        assertStrategiesMatch(kernel, ConvolutionEngine.Strategy.FFT);
+    }
+
+    @Test
+    void discBlurIsNotSeparable() {
+        Kernel kernel = Kernel.named("disc-blur");
+        assertFalse(kernel.isSeparable());
+        assertThrows(IllegalArgumentException.class,
+                () -> ConvolutionEngine.apply(TestRasters.random(64, 64), kernel, ConvolutionEngine.Strategy.SEPARABLE, null));
+    }
+
+    /**
+     * Filters each size directly and with every other strategy given, asserting the pixels are identical
+     *
+     * @param kernel     Kernel to correlate with
+     * @param strategies Strategies compared with DIRECT
+     */
+    private static void assertStrategiesMatch(Kernel kernel, ConvolutionEngine.Strategy... strategies) {
+        for (int[] size : SIZES) {
+            Raster source = TestRasters.random(size[0], size[1]);
+            Raster direct = ConvolutionEngine.apply(source, kernel, ConvolutionEngine.Strategy.DIRECT, null);
+            assertEquals(size[0] - kernel.getWidth() + 1, direct.getWidth());
+            assertEquals(size[1] - kernel.getHeight() + 1, direct.getHeight());
+
+            for (ConvolutionEngine.Strategy strategy : strategies) {
+                Raster other = ConvolutionEngine.apply(source, kernel, strategy, null);
+                String name = kernel.getName() + " " + strategy + " at " + size[0] + "x" + size[1];
+                assertEquals(direct.getWidth(), other.getWidth(), name);
+                assertEquals(direct.getHeight(), other.getHeight(), name);
+                assertArrayEquals(TestRasters.pixelsOf(direct), TestRasters.pixelsOf(other), name);
+            }
+        }
+    }
+}
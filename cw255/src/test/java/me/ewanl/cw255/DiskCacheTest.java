@@ -0,0 +1,85 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks rasters survive the disk cache unchanged, and that files with impossible headers are
+ * treated as misses and deleted rather than failing every lookup.
+ */
+class DiskCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rasterRoundTrips() {
+        DiskCache cache = new DiskCache(directory, 1 << 20);
+        Raster raster = new Raster(37, 11);
+        for (int i = 0; i < raster.pixels.length; i++) {
+            raster.pixels[i] = i * 0x01F3A5C7;
+        }
+        cache.put("key", raster);
+
+        Raster read = cache.get("key");
+        assertEquals(37, read.width);
+        assertEquals(11, read.height);
+        assertArrayEquals(raster.pixels, read.pixels);
+    }
+
+    @Test
+    void badSizesAreDeletedAsCorrupt() throws IOException {
+        int[][] sizes = {{-1, 10}, {10, -1}, {0, 10}, {Integer.MAX_VALUE, Integer.MAX_VALUE}, {65536, 65536}};
+        for (int[] size : sizes) {
+            DiskCache cache = new DiskCache(directory, 1 << 20);
+            cache.put("key", new Raster(2, 2));
+            Path file = onlyFile();
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+                out.writeInt(0x43573235);
+                out.writeInt(size[0]);
+                out.writeInt(size[1]);
+            }
+
+            assertNull(cache.get("key"), size[0] + "x" + size[1]);
+            assertEquals(1, cache.getMisses());
+            assertEquals(0, countFiles(), size[0] + "x" + size[1]);
+        }
+    }
+
+    @Test
+    void emptyRastersAreNotStored() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1 << 20);
+        cache.put("key", new Raster(0, 5));
+        assertEquals(0, countFiles());
+    }
+
+    /**
+     * @return The one file in the cache
+     * @throws IOException If the directory can't be listed
+     */
+    private Path onlyFile() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.findFirst().orElseThrow();
+        }
+    }
+
+    /**
+     * @return Number of files in the cache
+     * @throws IOException If the directory can't be listed
+     */
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
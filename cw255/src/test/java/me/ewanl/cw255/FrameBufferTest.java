@@ -0,0 +1,45 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks the changed rectangle marked when a frame is shown covers exactly the pixels that differ.
+ */
+class FrameBufferTest {
+
+    @Test
+    void identicalFramesChangeNothing() {
+        Raster before = TestRasters.random(300, 700);
+        assertArrayEquals(new int[0], FrameBuffer.difference(before, TestRasters.copy(before)));
+    }
+
+    @Test
+    void differenceBoundsChangedPixels() {
+        Raster before = TestRasters.random(300, 700);
+        Raster after = TestRasters.copy(before);
+
+        // Changes pixels in different bands, so the bands' bounds have to be merged
+        after.pixels[5 * 300 + 250] ^= 1;
+        after.pixels[400 * 300 + 17] ^= 1;
+        after.pixels[699 * 300 + 100] ^= 1;
+        assertArrayEquals(new int[]{17, 5, 251, 700}, FrameBuffer.difference(before, after));
+    }
+
+    @Test
+    void differenceOfOnePixel() {
+        Raster before = TestRasters.random(1, 1);
+        Raster after = TestRasters.copy(before);
+        after.pixels[0] ^= 0xFF000000;
+        assertArrayEquals(new int[]{0, 0, 1, 1}, FrameBuffer.difference(before, after));
+    }
+
+    @Test
+    void unionKeepsEitherWhenOtherIsEmpty() {
+        int[] bounds = {1, 2, 3, 4};
+        assertArrayEquals(bounds, FrameBuffer.union(bounds, new int[0]));
+        assertArrayEquals(bounds, FrameBuffer.union(new int[0], bounds));
+        assertArrayEquals(new int[]{0, 2, 9, 4}, FrameBuffer.union(bounds, new int[]{0, 3, 9, 4}));
+    }
+}
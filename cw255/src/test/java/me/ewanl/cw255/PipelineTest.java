@@ -0,0 +1,47 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks chained gamma corrections give exactly what running each one in turn does, whether
+ * they're fused into a resize or merged into one table.
+ */
+class PipelineTest {
+
+    @Test
+    void chainedGammaMatchesUnfused() {
+        Raster source = TestRasters.random(97, 61);
+
+        for (Interpolation interpolation : Interpolation.values()) {
+            for (double scale : new double[]{0.3, 1.0, 1.7}) {
+                for (double first : new double[]{0.45, 2.2}) {
+                    Raster expected = Photoshop.gammaCorrect(Photoshop.gammaCorrect(
+                            Photoshop.resizeImage(source, scale, interpolation, null),
+                            GammaLut.forGamma(first)), GammaLut.forGamma(1.3));
+                    Raster actual = Pipeline.of(source).resize(scale, interpolation).gamma(first).gamma(1.3).build();
+
+                    String name = interpolation + " x" + scale + ", gamma " + first + " then 1.3";
+                    assertEquals(expected.width, actual.width, name);
+                    assertEquals(expected.height, actual.height, name);
+                    assertArrayEquals(TestRasters.pixelsOf(expected), TestRasters.pixelsOf(actual), name);
+                }
+            }
+        }
+    }
+
+    @Test
+    void composedTableRoundsBetweenSteps() {
+        GammaLut first = GammaLut.forGamma(2.2), second = GammaLut.forGamma(1.3);
+        GammaLut composed = first.then(second);
+        for (int channel = 0; channel < 256; channel++) {
+            assertEquals(second.applyToChannel(first.applyToChannel(channel)), composed.applyToChannel(channel));
+        }
+
+        // Gammas whose product is 1 still change values, as each step rounds
+        assertFalse(GammaLut.forGamma(2).then(GammaLut.forGamma(0.5)).isIdentity());
+    }
+}
@@ -0,0 +1,43 @@
+package me.ewanl.cw255;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rasters shared by the tests
+ */
+final class TestRasters {
+
+    private TestRasters() {
+    }
+
+    /**
+     * @param width  Width in pixels
+     * @param height Height in pixels
+     * @return Raster of random opaque pixels, the same for the same size
+     */
+    static Raster random(int width, int height) {
+        Random random = new Random((long) width * height);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(1 << 24);
+        }
+        return new Raster(width, height, pixels);
+    }
+
+    /**
+     * @param raster Raster to copy
+     * @return Raster with its own copy of the pixels
+     */
+    static Raster copy(Raster raster) {
+        return new Raster(raster.width, raster.height, raster.pixels.clone());
+    }
+
+    /**
+     * @param raster Raster to read
+     * @return Its pixels, without any of a pooled array's spare length
+     */
+    static int[] pixelsOf(Raster raster) {
+        return Arrays.copyOf(raster.pixels, raster.width * raster.height);
+    }
+}
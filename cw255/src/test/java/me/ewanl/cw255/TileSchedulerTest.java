@@ -0,0 +1,70 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the operations give the same pixels however their bands are scheduled: split across
+ * a pool, or run one after another on the calling thread.
+ */
+class TileSchedulerTest {
+
+    /**
+     * Sizes tried; at these widths a band is 126, 65 and 512 rows, so no height is a whole number of bands
+     */
+    private static final int[][] SIZES = {{517, 1001}, {1000, 333}, {128, 1537}};
+
+    @AfterEach
+    void restoreDefault() {
+        TileScheduler.configure(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    @Test
+    void gammaMatchesSequential() {
+        assertSameScheduled(source -> Photoshop.gammaCorrect(source, GammaLut.forGamma(2.2)));
+    }
+
+    @Test
+    void nearestNeighbourResizeMatchesSequential() {
+        assertSameScheduled(source -> Photoshop.resizeImage(source, 1.7, true));
+        assertSameScheduled(source -> Photoshop.resizeImage(source, 0.3, true));
+    }
+
+    @Test
+    void bilinearResizeMatchesSequential() {
+        assertSameScheduled(source -> Photoshop.resizeImage(source, 1.7, false));
+        assertSameScheduled(source -> Photoshop.resizeImage(source, 0.3, false));
+    }
+
+    @Test
+    void laplaceMatchesSequential() {
+        assertSameScheduled(Photoshop::applyLaplace);
+    }
+
+    /**
+     * Runs an operation on each size with a pool of several threads and with a sequential scheduler,
+     * each time on a fresh copy of the source so nothing is shared between the runs
+     *
+     * @param operation Operation to run
+     */
+    private static void assertSameScheduled(UnaryOperator<Raster> operation) {
+        for (int[] size : SIZES) {
+            Raster source = TestRasters.random(size[0], size[1]);
+
+            TileScheduler.configure(1, true);
+            Raster sequential = operation.apply(TestRasters.copy(source));
+            TileScheduler.configure(4, false);
+            Raster parallel = operation.apply(TestRasters.copy(source));
+
+            String name = size[0] + "x" + size[1];
+            assertEquals(sequential.getWidth(), parallel.getWidth(), name);
+            assertEquals(sequential.getHeight(), parallel.getHeight(), name);
+            assertArrayEquals(TestRasters.pixelsOf(sequential), TestRasters.pixelsOf(parallel), name);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package me.ewanl.cw255;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks every Vector API kernel gives exactly what its scalar version does, at widths
+ * that leave a tail after the last full vector as well as ones that don't.
+ */
+class VectorKernelsTest {
+
+    /**
+     * Widths tried, around and between multiples of every vector length
+     */
+    private static final int[] WIDTHS = {1, 3, 7, 31, 32, 33, 63, 64, 65, 127, 255, 517, 1001};
+
+    /**
+     * Fixed seed, so a failure can be repeated
+     */
+    private final Random random = new Random(255);
+
+    @BeforeAll
+    static void requireVectorModule() {
+        assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(),
+                "Run with --add-modules jdk.incubator.vector");
+    }
+
+    @Test
+    void applyLutMatchesScalar() {
+        for (double gamma : new double[]{0.45, 1.0, 2.2}) {
+            GammaLut lut = GammaLut.forGamma(gamma);
+            int[] table = new int[256];
+            for (int i = 0; i < 256; i++) {
+                table[i] = lut.apply(i) & 0xFF;
+            }
+
+            for (int width : WIDTHS) {
+                int[] src = randomPixels(width + 5);
+                int[] expected = new int[width + 3], actual = new int[width + 3];
+                for (int p = 0; p < width; p++) {
+                    expected[p + 3] = lut.apply(src[p + 5]);
+                }
+                VectorKernels.applyLut(table, src, 5, actual, 3, width);
+                assertArrayEquals(expected, actual, "gamma " + gamma + ", width " + width);
+            }
+        }
+    }
+
+    @Test
+    void blendRowsMatchesScalar() {
+        for (int width : WIDTHS) {
+            long[] topRB = randomLanes(width), topAG = randomLanes(width);
+            long[] bottomRB = randomLanes(width), bottomAG = randomLanes(width);
+
+            // Weights of the lower row are out of 256
+            for (int wy : new int[]{0, 1, 100, 255, 256}) {
+                int[] expected = new int[width + 2], actual = new int[width + 2];
+                BilinearResampler.blendRowsScalar(topRB, topAG, bottomRB, bottomAG, wy, expected, 2, null);
+                VectorKernels.blendRows(topRB, topAG, bottomRB, bottomAG, wy, actual, 2);
+                assertArrayEquals(expected, actual, "width " + width + ", wy " + wy);
+            }
+        }
+    }
+
+    @Test
+    void correlateRowMatchesScalar() {
+        for (Kernel kernel : new Kernel[]{Kernel.LAPLACIAN, Kernel.SOBEL_X, Kernel.BOX_BLUR}) {
+            for (int width : WIDTHS) {
+                int height = kernel.height;
+                int[][] red = randomChannels(height, width + kernel.width - 1);
+                int[][] green = randomChannels(height, width + kernel.width - 1);
+                int[][] blue = randomChannels(height, width + kernel.width - 1);
+
+                // Starts the window part way round, as a row of a running filter would
+                for (int topRow = 0; topRow < height; topRow++) {
+                    int[][] expected = new int[3][width + 1], actual = new int[3][width + 1];
+                    ConvolutionEngine.correlateRowScalar(kernel, red, green, blue, topRow,
+                            expected[0], expected[1], expected[2], 1, width);
+                    VectorKernels.correlateRow(kernel, red, green, blue, topRow,
+                            actual[0], actual[1], actual[2], 1, width);
+                    for (int channel = 0; channel < 3; channel++) {
+                        assertArrayEquals(expected[channel], actual[channel],
+                                kernel.getName() + ", width " + width + ", top row " + topRow);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void widenRangeMatchesScalar() {
+        for (int width : WIDTHS) {
+            int[] red = randomResponses(width + 4), green = randomResponses(width + 4), blue = randomResponses(width + 4);
+
+            // Widens an empty range and one that already holds values beyond the responses
+            for (int[] start : new int[][]{ConvolutionEngine.emptyRange(), {-10, 10, -20, 20, -30, 30}}) {
+                int[] expected = start.clone(), actual = start.clone();
+                ConvolutionEngine.widenRangeScalar(expected, red, green, blue, 3, 3 + width);
+                VectorKernels.widenRange(actual, red, green, blue, 3, 3 + width);
+                assertArrayEquals(expected, actual, "width " + width + ", from " + Arrays.toString(start));
+            }
+        }
+    }
+
+    @Test
+    void unpackRowMatchesScalar() {
+        for (int width : WIDTHS) {
+            int[] src = randomPixels(width + 7);
+            int[][] expected = new int[3][width], actual = new int[3][width];
+            ConvolutionEngine.unpackRowScalar(src, 7, expected[0], expected[1], expected[2]);
+            VectorKernels.unpackRow(src, 7, actual[0], actual[1], actual[2]);
+            for (int channel = 0; channel < 3; channel++) {
+                assertArrayEquals(expected[channel], actual[channel], "width " + width);
+            }
+        }
+    }
+
+    /**
+     * @param length Number of pixels
+     * @return Packed ARGB pixels with random values in every channel
+     */
+    private int[] randomPixels(int length) {
+        int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * @param length Number of pixels
+     * @return Unpacked lanes, two channels each weighted out of 256, as a horizontal pass leaves them
+     */
+    private long[] randomLanes(int length) {
+        long[] lanes = new long[length];
+        for (int i = 0; i < length; i++) {
+            lanes[i] = (long) random.nextInt(255 * 256 + 1) << 32 | random.nextInt(255 * 256 + 1);
+        }
+        return lanes;
+    }
+
+    /**
+     * @param rows   Number of rows
+     * @param length Number of values in each row
+     * @return Rows of random 8-bit channel values
+     */
+    private int[][] randomChannels(int rows, int length) {
+        int[][] channels = new int[rows][length];
+        for (int[] row : channels) {
+            for (int i = 0; i < length; i++) {
+                row[i] = random.nextInt(256);
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * @param length Number of responses
+     * @return Random responses, negative as well as positive
+     */
+    private int[] randomResponses(int length) {
+        int[] responses = new int[length];
+        for (int i = 0; i < length; i++) {
+            responses[i] = random.nextInt(-5000, 5000);
+        }
+        return responses;
+    }
+}